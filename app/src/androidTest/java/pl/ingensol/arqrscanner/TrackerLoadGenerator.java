@@ -0,0 +1,363 @@
+package pl.ingensol.arqrscanner;
+
+import android.graphics.Point;
+import android.os.Debug;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.Tracker;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import pl.ingensol.arqrscanner.metrics.LatencyHistogram;
+
+/**
+ * Drives trackers created by {@link BarcodeTrackerFactory} from many threads at once, without
+ * the camera and detector, to see how locks shared by trackers, {@link LoadedValueMemo},
+ * {@link TrackersCountListener} and the overlay behave with many codes churning.  Use it as
+ * a regression benchmark for concurrency changes in these classes.<p>
+ *
+ * Every thread owns a share of the codes and repeatedly walks through them: a code is updated,
+ * reported missing, or with the churn probability done and replaced by a new tracker.  Codes
+ * carry text payloads only, so that content loading does not wait for the network.<p>
+ *
+ * Besides wall time of every callback, time the calling thread spent off CPU during the
+ * callback is recorded as blocked time.  With no more threads than cores this is mostly time
+ * spent waiting for locks, the rest being preemption.<p>
+ *
+ * When the load ends, the trackers in view and the graphics in the overlay are counted, then all
+ * codes go out of view and the factory processes enough frames to expire the done trackers.
+ * Run it with {@link TrackerLoadTest}.
+ */
+class TrackerLoadGenerator {
+
+    private static final float MISSING_PROBABILITY = 0.1f;
+    private static final int MIN_CODE_SIZE_PX = 40;
+    private static final int MAX_CODE_SIZE_PX = 200;
+    private static final int JITTER_PX = 2;
+
+    enum Operation {
+        CREATE, UPDATE, MISSING, DONE
+    }
+
+    private final BarcodeTrackerFactory mFactory;
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+
+    TrackerLoadGenerator(BarcodeTrackerFactory factory, int previewWidth, int previewHeight) {
+        mFactory = factory;
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+    }
+
+    /**
+     * Runs the load on {@code threadsCount} new threads and waits for them to finish.
+     *
+     * @param codesCount number of codes in view at once, split between threads
+     * @param churn      probability that a code is replaced by a new one on each of its turns
+     */
+    Report run(int threadsCount, int codesCount, float churn, long durationMillis) throws InterruptedException {
+        Worker[] workers = new Worker[threadsCount];
+        Thread[] threads = new Thread[threadsCount];
+        long deadlineNanos = System.nanoTime() + durationMillis * 1000000;
+        for (int i = 0; i < threadsCount; i++) {
+            int workerCodesCount = codesCount / threadsCount + (i < codesCount % threadsCount ? 1 : 0);
+            workers[i] = new Worker(i, workerCodesCount, codesCount, churn, deadlineNanos);
+            threads[i] = new Thread(workers[i], "load-" + i);
+        }
+
+        long startNanos = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        Set<Tracker<Barcode>> trackersInView =
+                Collections.newSetFromMap(new IdentityHashMap<Tracker<Barcode>, Boolean>());
+        for (Worker worker : workers) {
+            Collections.addAll(trackersInView, worker.mTrackers);
+        }
+        int graphicsInViewCount = mFactory.getGraphicOverlay().getGraphics().size();
+        for (Worker worker : workers) {
+            worker.finish();
+        }
+        for (int i = 0; i <= BarcodeTrackerFactory.RETAIN_DONE_FRAMES_COUNT; i++) {
+            mFactory.onFrameProcessed();
+        }
+        int graphicsLeftCount = mFactory.getGraphicOverlay().getGraphics().size();
+        return new Report(threadsCount, codesCount, churn, workers, elapsedNanos,
+                trackersInView.size(), graphicsInViewCount, graphicsLeftCount);
+    }
+
+    private class Worker implements Runnable {
+
+        private final Random mRandom;
+        private final Tracker<Barcode>[] mTrackers;
+        private final Barcode[] mBarcodes;
+        private final int mValuesCount;
+        private final float mChurn;
+        private final long mDeadlineNanos;
+        private final Detector.Detections<Barcode> mDetections =
+                new Detector.Detections<>(new SparseArray<Barcode>(), new Frame.Metadata(), true);
+        private final LatencyHistogram[] mLatencies = new LatencyHistogram[Operation.values().length];
+        private final LatencyHistogram[] mBlockedTimes = new LatencyHistogram[Operation.values().length];
+        private long mTotalLatencyNanos;
+        private long mTotalBlockedNanos;
+        private int mNextId;
+
+        @SuppressWarnings("unchecked")
+        Worker(int index, int codesCount, int allCodesCount, float churn, long deadlineNanos) {
+            // seeded, so that runs with the same parameters are comparable
+            mRandom = new Random(index);
+            mTrackers = new Tracker[codesCount];
+            mBarcodes = new Barcode[codesCount];
+            // values repeat among codes, so content is mostly found in the memo, as in a real scene
+            mValuesCount = Math.max(1, allCodesCount * 4);
+            mChurn = churn;
+            mDeadlineNanos = deadlineNanos;
+            mNextId = index << 20;
+            for (int i = 0; i < mLatencies.length; i++) {
+                mLatencies[i] = new LatencyHistogram();
+                mBlockedTimes[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < mTrackers.length; i++) {
+                create(i);
+            }
+            while (System.nanoTime() < mDeadlineNanos) {
+                for (int i = 0; i < mTrackers.length; i++) {
+                    float draw = mRandom.nextFloat();
+                    if (draw < mChurn) {
+                        done(i);
+                        create(i);
+                    } else if (draw < mChurn + MISSING_PROBABILITY) {
+                        missing(i);
+                    } else {
+                        update(i);
+                    }
+                }
+                // a pass over the codes stands for a frame, expiring done trackers not re-attached
+                mFactory.onFrameProcessed();
+            }
+        }
+
+        /**
+         * Ends tracking of codes still in view, the way the multi-processor does when released.
+         */
+        void finish() {
+            for (int i = 0; i < mTrackers.length; i++) {
+                if (mTrackers[i] != null) {
+                    mTrackers[i].onDone();
+                }
+            }
+        }
+
+        private void create(int i) {
+            Barcode barcode = newBarcode();
+            long startNanos = System.nanoTime();
+            long startCpuNanos = Debug.threadCpuTimeNanos();
+            Tracker<Barcode> tracker = mFactory.create(barcode);
+            tracker.onNewItem(mNextId++, barcode);
+            tracker.onUpdate(mDetections, barcode);
+            record(Operation.CREATE, startNanos, startCpuNanos);
+            mTrackers[i] = tracker;
+            mBarcodes[i] = barcode;
+        }
+
+        private void update(int i) {
+            // the detector delivers a new barcode on every frame, trackers may keep the previous one
+            Barcode previous = mBarcodes[i];
+            Point[] cornerPoints = new Point[previous.cornerPoints.length];
+            for (int j = 0; j < cornerPoints.length; j++) {
+                cornerPoints[j] = new Point(
+                        previous.cornerPoints[j].x + mRandom.nextInt(2 * JITTER_PX + 1) - JITTER_PX,
+                        previous.cornerPoints[j].y + mRandom.nextInt(2 * JITTER_PX + 1) - JITTER_PX);
+            }
+            Barcode barcode = newBarcode(previous.rawValue, cornerPoints);
+            mBarcodes[i] = barcode;
+            long startNanos = System.nanoTime();
+            long startCpuNanos = Debug.threadCpuTimeNanos();
+            mTrackers[i].onUpdate(mDetections, barcode);
+            record(Operation.UPDATE, startNanos, startCpuNanos);
+        }
+
+        private void missing(int i) {
+            long startNanos = System.nanoTime();
+            long startCpuNanos = Debug.threadCpuTimeNanos();
+            mTrackers[i].onMissing(mDetections);
+            record(Operation.MISSING, startNanos, startCpuNanos);
+        }
+
+        private void done(int i) {
+            long startNanos = System.nanoTime();
+            long startCpuNanos = Debug.threadCpuTimeNanos();
+            mTrackers[i].onDone();
+            record(Operation.DONE, startNanos, startCpuNanos);
+            mTrackers[i] = null;
+        }
+
+        private void record(Operation operation, long startNanos, long startCpuNanos) {
+            long latencyNanos = System.nanoTime() - startNanos;
+            mLatencies[operation.ordinal()].recordNanos(latencyNanos);
+            mTotalLatencyNanos += latencyNanos;
+            // -1 when the platform does not measure thread CPU time
+            if (startCpuNanos >= 0) {
+                long blockedNanos = Math.max(0, latencyNanos - (Debug.threadCpuTimeNanos() - startCpuNanos));
+                mBlockedTimes[operation.ordinal()].recordNanos(blockedNanos);
+                mTotalBlockedNanos += blockedNanos;
+            }
+        }
+
+        private Barcode newBarcode() {
+            int size = MIN_CODE_SIZE_PX + mRandom.nextInt(MAX_CODE_SIZE_PX - MIN_CODE_SIZE_PX + 1);
+            int left = mRandom.nextInt(Math.max(1, mPreviewWidth - size));
+            int top = mRandom.nextInt(Math.max(1, mPreviewHeight - size));
+
+            return newBarcode("load " + mRandom.nextInt(mValuesCount), new Point[] {
+                    new Point(left, top),
+                    new Point(left + size, top),
+                    new Point(left + size, top + size),
+                    new Point(left, top + size)
+            });
+        }
+
+        private Barcode newBarcode(String rawValue, Point[] cornerPoints) {
+            Barcode barcode = new Barcode();
+            barcode.rawValue = rawValue;
+            barcode.displayValue = rawValue;
+            barcode.format = Barcode.QR_CODE;
+            barcode.valueFormat = Barcode.TEXT;
+            barcode.cornerPoints = cornerPoints;
+            return barcode;
+        }
+    }
+
+    /**
+     * Throughput, latency and blocked time of callbacks, merged from all threads.
+     */
+    static class Report {
+
+        private final int mThreadsCount;
+        private final int mCodesCount;
+        private final float mChurn;
+        private final LatencyHistogram.Snapshot[] mLatencies = new LatencyHistogram.Snapshot[Operation.values().length];
+        private final LatencyHistogram.Snapshot[] mBlockedTimes = new LatencyHistogram.Snapshot[Operation.values().length];
+        private final long mTotalLatencyNanos;
+        private final long mTotalBlockedNanos;
+        private final long mElapsedNanos;
+        private final int mTrackersInViewCount;
+        private final int mGraphicsInViewCount;
+        private final int mGraphicsLeftCount;
+
+        Report(int threadsCount, int codesCount, float churn, Worker[] workers, long elapsedNanos,
+               int trackersInViewCount, int graphicsInViewCount, int graphicsLeftCount) {
+            mThreadsCount = threadsCount;
+            mCodesCount = codesCount;
+            mChurn = churn;
+            mElapsedNanos = elapsedNanos;
+            mTrackersInViewCount = trackersInViewCount;
+            mGraphicsInViewCount = graphicsInViewCount;
+            mGraphicsLeftCount = graphicsLeftCount;
+            long totalLatencyNanos = 0;
+            long totalBlockedNanos = 0;
+            for (Worker worker : workers) {
+                for (int i = 0; i < mLatencies.length; i++) {
+                    LatencyHistogram.Snapshot latencies = worker.mLatencies[i].takeSnapshot();
+                    LatencyHistogram.Snapshot blockedTimes = worker.mBlockedTimes[i].takeSnapshot();
+                    mLatencies[i] = mLatencies[i] == null ? latencies : mLatencies[i].plus(latencies);
+                    mBlockedTimes[i] = mBlockedTimes[i] == null ? blockedTimes : mBlockedTimes[i].plus(blockedTimes);
+                }
+                totalLatencyNanos += worker.mTotalLatencyNanos;
+                totalBlockedNanos += worker.mTotalBlockedNanos;
+            }
+            mTotalLatencyNanos = totalLatencyNanos;
+            mTotalBlockedNanos = totalBlockedNanos;
+        }
+
+        long getCallbacksCount() {
+            long count = 0;
+            for (LatencyHistogram.Snapshot latencies : mLatencies) {
+                count += latencies.getTotalCount();
+            }
+            return count;
+        }
+
+        long getCallbacksCount(Operation operation) {
+            return mLatencies[operation.ordinal()].getTotalCount();
+        }
+
+        /**
+         * Returns the number of distinct trackers held for the codes in view when the load ended.
+         */
+        int getTrackersInViewCount() {
+            return mTrackersInViewCount;
+        }
+
+        /**
+         * Returns the number of graphics in the overlay when the load ended, including those of
+         * done trackers not expired yet.
+         */
+        int getGraphicsInViewCount() {
+            return mGraphicsInViewCount;
+        }
+
+        /**
+         * Returns the number of graphics left in the overlay after all done trackers expired.
+         */
+        int getGraphicsLeftCount() {
+            return mGraphicsLeftCount;
+        }
+
+        double getCallbacksPerSecond() {
+            return mElapsedNanos > 0 ? getCallbacksCount() * 1e9 / mElapsedNanos : 0;
+        }
+
+        /**
+         * Returns the share of callbacks time which threads spent blocked.
+         */
+        double getBlockedRatio() {
+            return mTotalLatencyNanos > 0 ? (double) mTotalBlockedNanos / mTotalLatencyNanos : 0;
+        }
+
+        LatencyHistogram.Snapshot getLatencies(Operation operation) {
+            return mLatencies[operation.ordinal()];
+        }
+
+        LatencyHistogram.Snapshot getBlockedTimes(Operation operation) {
+            return mBlockedTimes[operation.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder(String.format(Locale.US,
+                    "threads=%d codes=%d churn=%.3f callbacks=%d rate=%.0f/s blocked=%.1f%%"
+                            + " trackers=%d graphics=%d left=%d",
+                    mThreadsCount, mCodesCount, mChurn, getCallbacksCount(), getCallbacksPerSecond(),
+                    getBlockedRatio() * 100, mTrackersInViewCount, mGraphicsInViewCount, mGraphicsLeftCount));
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram.Snapshot latencies = getLatencies(operation);
+                LatencyHistogram.Snapshot blockedTimes = getBlockedTimes(operation);
+                result.append(String.format(Locale.US,
+                        "\n%s n=%d latency ms: p50=%.3f p99=%.3f max=%.3f blocked ms: p99=%.3f max=%.3f",
+                        operation.name().toLowerCase(Locale.US), latencies.getTotalCount(),
+                        latencies.getValueAtPercentileNanos(50) / 1e6, latencies.getValueAtPercentileNanos(99) / 1e6,
+                        latencies.getMaxNanos() / 1e6,
+                        blockedTimes.getValueAtPercentileNanos(99) / 1e6, blockedTimes.getMaxNanos() / 1e6));
+            }
+            return result.toString();
+        }
+    }
+
+}
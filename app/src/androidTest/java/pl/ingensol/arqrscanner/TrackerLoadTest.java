@@ -0,0 +1,85 @@
+package pl.ingensol.arqrscanner;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.android.gms.vision.CameraSource;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import pl.ingensol.arqrscanner.camera.GraphicOverlay;
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link TrackerLoadGenerator} on the device, logs its report and checks that every code
+ * had its own tracker and graphic, that none was left after the codes went out of view and that
+ * the 99th percentile latency of every callback stayed within a bound, e.g.
+ * {@code adb shell am instrument -w -e class pl.ingensol.arqrscanner.TrackerLoadTest
+ * -e load_threads 4 -e load_codes 100 -e load_churn 0.01 -e load_seconds 10 -e load_max_p99_ms 50
+ * pl.ingensol.arqrscanner.test/android.support.test.runner.AndroidJUnitRunner}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackerLoadTest {
+
+    private static final String TAG = "TrackerLoadTest";
+    private static final int PREVIEW_WIDTH = 1280;
+    private static final int PREVIEW_HEIGHT = 720;
+    // longer than the delay after which the listener reports that no trackers are left
+    private static final long NO_TRACKERS_TIMEOUT_MS = 5000;
+
+    @Test
+    public void trackersSustainLoad() throws InterruptedException {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        int threadsCount = Integer.parseInt(arguments.getString("load_threads", "4"));
+        int codesCount = Integer.parseInt(arguments.getString("load_codes", "100"));
+        float churn = Float.parseFloat(arguments.getString("load_churn", "0.01"));
+        long durationMillis = Long.parseLong(arguments.getString("load_seconds", "10")) * 1000;
+        long maxP99Millis = Long.parseLong(arguments.getString("load_max_p99_ms", "50"));
+
+        GraphicOverlay<BarcodeGraphic> overlay = new GraphicOverlay<>(InstrumentationRegistry.getTargetContext(), null);
+        overlay.setCameraInfo(PREVIEW_WIDTH, PREVIEW_HEIGHT, CameraSource.CAMERA_FACING_BACK);
+        final CountDownLatch noTrackersLatch = new CountDownLatch(1);
+        // focus is not changed, as there is no camera
+        TrackersCountListener trackersCountListener = new TrackersCountListener() {
+            @Override
+            protected void onTrackersCountChanged(int size) {
+                if (size == 0) {
+                    noTrackersLatch.countDown();
+                }
+            }
+        };
+        BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(overlay, trackersCountListener,
+                new PipelineMetrics(), null, null);
+        TrackerLoadGenerator generator = new TrackerLoadGenerator(barcodeFactory, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+
+        TrackerLoadGenerator.Report report = generator.run(threadsCount, codesCount, churn, durationMillis);
+        Log.i(TAG, "Load: " + report);
+
+        // every replaced code got a new tracker
+        long doneCount = report.getCallbacksCount(TrackerLoadGenerator.Operation.DONE);
+        assertEquals(codesCount + doneCount, report.getCallbacksCount(TrackerLoadGenerator.Operation.CREATE));
+        assertTrue(report.getCallbacksCount(TrackerLoadGenerator.Operation.UPDATE) > 0);
+        // no tracker was handed out for two codes, and none lost its graphic
+        assertEquals(codesCount, report.getTrackersInViewCount());
+        assertTrue(report.getGraphicsInViewCount() >= codesCount);
+        // all trackers expired once the codes went out of view
+        assertEquals(0, report.getGraphicsLeftCount());
+        assertTrue(noTrackersLatch.await(NO_TRACKERS_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        for (TrackerLoadGenerator.Operation operation : TrackerLoadGenerator.Operation.values()) {
+            long p99Nanos = report.getLatencies(operation).getValueAtPercentileNanos(99);
+            assertTrue(operation + " p99 latency " + p99Nanos / 1e6 + " ms",
+                    p99Nanos <= maxP99Millis * 1000000);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package pl.ingensol.arqrscanner;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Movie;
+import android.support.v4.os.TraceCompat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pl.ingensol.arqrscanner.content.ByteBufferInputStream;
+
+/**
+ * Presented animation, e.g. a short GIF instruction, drawn frame by frame over the barcode.<p>
+ *
+ * The animation is kept compressed by {@link Movie}, which decodes the frame for a given time on
+ * demand.  Frames are rendered ahead on a shared background thread into a small ring of bitmaps,
+ * reused over and over, and the UI thread draws the one due at the render time, skipping frames
+ * if it falls behind.  So memory is bounded by the ring, whatever the length of the animation,
+ * and frames are rendered only while the animation is drawn.<p>
+ *
+ * The ring is filled by the render thread only with frames after the one drawn last, so the UI
+ * thread never draws a bitmap being rendered.
+ */
+class AnimatedContent {
+
+    // one frame drawn, the others rendered ahead
+    private static final int FRAMES_COUNT = 3;
+    private static final long FRAME_INTERVAL_MS = 66;
+    private static final int MAX_FRAME_SIZE_PX = 512;
+
+    // shared by all animations, so each movie is used by one thread only
+    private static final ExecutorService RENDER_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "animation-render");
+        }
+    });
+
+    // used by the render thread only
+    private final Movie mMovie;
+    private final Canvas mCanvas = new Canvas();
+    private final float mScale;
+
+    private final Bitmap[] mFrames;
+    // pixels of the frame kept by the decoder, at full size
+    private final int mDecoderByteCount;
+    // number of frames rendered, written by the render thread only
+    private volatile long mRenderedCount;
+    // index of the frame drawn last, written by the UI thread only
+    private volatile long mDrawnIndex;
+    private final AtomicBoolean mRenderScheduled = new AtomicBoolean();
+    // used by the UI thread only
+    private long mStartMillis = -1;
+
+    private AnimatedContent(Movie movie, float scale) {
+        mMovie = movie;
+        mScale = scale;
+        mDecoderByteCount = (int) Math.min(Integer.MAX_VALUE, 4L * movie.width() * movie.height());
+        int width = Math.max(1, Math.round(movie.width() * scale));
+        int height = Math.max(1, Math.round(movie.height() * scale));
+        mFrames = new Bitmap[FRAMES_COUNT];
+        for (int i = 0; i < FRAMES_COUNT; i++) {
+            mFrames[i] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    /**
+     * Reads the animation from the buffer and starts rendering its first frames.  Returns null if
+     * it is not an animation the platform can decode, e.g. a still image, to be decoded as one.
+     *
+     * @param targetSize size, in pixels, frames are rendered no larger than, or 0 for the default
+     */
+    static AnimatedContent decode(ByteBuffer encoded, int targetSize) {
+        TraceCompat.beginSection("animation decode");
+        try {
+            Movie movie = Movie.decodeStream(new ByteBufferInputStream(encoded.duplicate()));
+            if (movie == null || movie.duration() <= 0 || movie.width() <= 0 || movie.height() <= 0) {
+                return null;
+            }
+            int maxSize = targetSize > 0 ? Math.min(targetSize, MAX_FRAME_SIZE_PX) : MAX_FRAME_SIZE_PX;
+            float scale = Math.min(1f, (float) maxSize / Math.max(movie.width(), movie.height()));
+            AnimatedContent content = new AnimatedContent(movie, scale);
+            content.scheduleRender();
+            return content;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    int getWidth() {
+        return mFrames[0].getWidth();
+    }
+
+    int getHeight() {
+        return mFrames[0].getHeight();
+    }
+
+    /**
+     * Returns the memory used by the pixels of the frames, including the one kept by the decoder.
+     */
+    int getByteCount() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) FRAMES_COUNT * mFrames[0].getByteCount() + mDecoderByteCount);
+    }
+
+    /**
+     * Returns the frame due at the given render time and requests rendering of the following
+     * ones, or null if the first frame is not rendered yet.  The animation starts at the time the
+     * first frame is returned, so that it is not skipped.  Must be called from the UI thread.
+     */
+    Bitmap getFrame(long uptimeMillis) {
+        long drawnIndex = mDrawnIndex;
+        long lastRenderedIndex = mRenderedCount - 1;
+        if (lastRenderedIndex < drawnIndex) {
+            return null;
+        }
+        if (mStartMillis < 0) {
+            mStartMillis = uptimeMillis;
+        }
+        long dueIndex = (uptimeMillis - mStartMillis) / FRAME_INTERVAL_MS;
+        if (dueIndex > drawnIndex) {
+            drawnIndex = Math.min(dueIndex, lastRenderedIndex);
+            mDrawnIndex = drawnIndex;
+            scheduleRender();
+        }
+        return mFrames[(int) (drawnIndex % FRAMES_COUNT)];
+    }
+
+    /**
+     * Returns the time, in milliseconds, until the frame after the one due at the given render
+     * time.  Must be called from the UI thread, after {@link #getFrame}.
+     */
+    long getMillisToNextFrame(long uptimeMillis) {
+        if (mStartMillis < 0) {
+            return FRAME_INTERVAL_MS;
+        }
+        return FRAME_INTERVAL_MS - (uptimeMillis - mStartMillis) % FRAME_INTERVAL_MS;
+    }
+
+    private void scheduleRender() {
+        if (mRenderScheduled.compareAndSet(false, true)) {
+            RENDER_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    render();
+                }
+            });
+        }
+    }
+
+    /**
+     * Renders frames into the ring, up to the slot of the frame drawn last.
+     */
+    private void render() {
+        // cleared first, so that frames drawn meanwhile schedule another run
+        mRenderScheduled.set(false);
+        long index = mRenderedCount;
+        if (index >= mDrawnIndex + FRAMES_COUNT) {
+            return;
+        }
+        TraceCompat.beginSection("animation render");
+        try {
+            int duration = mMovie.duration();
+            while (index < mDrawnIndex + FRAMES_COUNT) {
+                Bitmap frame = mFrames[(int) (index % FRAMES_COUNT)];
+                frame.eraseColor(Color.TRANSPARENT);
+                mCanvas.setBitmap(frame);
+                mCanvas.save();
+                mCanvas.scale(mScale, mScale);
+                mMovie.setTime((int) (index * FRAME_INTERVAL_MS % duration));
+                mMovie.draw(mCanvas, 0, 0);
+                mCanvas.restore();
+                mRenderedCount = ++index;
+            }
+            mCanvas.setBitmap(null);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+}
@@ -25,34 +25,56 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.hardware.Camera;
-import android.hardware.SensorManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.os.TraceCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
-import android.view.OrientationEventListener;
 import android.view.View;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.vision.CameraSource;
+import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.MultiProcessor;
 import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
 
+import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.util.Timer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.regex.Matcher;
 
+import pl.ingensol.arqrscanner.camera.AdaptiveResolutionDetector;
 import pl.ingensol.arqrscanner.camera.CameraSourcePreview;
 import pl.ingensol.arqrscanner.camera.GraphicOverlay;
+import pl.ingensol.arqrscanner.camera.OrientationSensor;
+import pl.ingensol.arqrscanner.content.ContentBundleStore;
+import pl.ingensol.arqrscanner.inventory.InventoryBatchWriter;
+import pl.ingensol.arqrscanner.journal.JournalUploader;
+import pl.ingensol.arqrscanner.journal.ScanJournal;
+import pl.ingensol.arqrscanner.metrics.MetricsExporter;
+import pl.ingensol.arqrscanner.metrics.PerformanceHud;
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+import pl.ingensol.arqrscanner.metrics.TimedDetector;
+import pl.ingensol.arqrscanner.quality.PacedProcessor;
+import pl.ingensol.arqrscanner.quality.QualityGovernor;
+import pl.ingensol.arqrscanner.quality.QualityLevel;
+import pl.ingensol.arqrscanner.replay.FrameRecordingReader;
+import pl.ingensol.arqrscanner.replay.FrameRecordingWriter;
+import pl.ingensol.arqrscanner.replay.RecordingDetector;
+import pl.ingensol.arqrscanner.replay.ReplayDriver;
 
 /**
  * Activity for the multi-tracker app.  This app detects barcodes and displays the value with the
@@ -68,45 +90,142 @@ public final class BarcodeCaptureActivity extends AppCompatActivity {
     // permission request codes need to be < 256
     private static final int RC_HANDLE_CAMERA_PERM = 2;
 
+    // intent extras for recording camera sessions and replaying them instead of the camera, e.g.
+    // adb shell am start -n pl.ingensol.arqrscanner/.BarcodeCaptureActivity \
+    //     --es record /sdcard/Android/data/pl.ingensol.arqrscanner/files/scan.rec
+    static final String EXTRA_RECORD_PATH = "record";
+    static final String EXTRA_RECORD_FRAMES = "record_frames";
+    static final String EXTRA_REPLAY_PATH = "replay";
+    static final String EXTRA_REPLAY_PACED = "replay_paced";
+    static final String EXTRA_REPLAY_CONTENT_BASE_URL = "replay_content_base_url";
+    static final String EXTRA_INVENTORY = "inventory";
+    static final String EXTRA_UPLOAD_URL = "upload_url";
+    static final String EXTRA_BULK_PATH = "bulk";
+    static final String EXTRA_BULK_OUTPUT = "bulk_output";
+
+    // intent extra installing a bundle of offline content, built by the benchmark module, e.g.
+    //     --es content_bundle /sdcard/Android/data/pl.ingensol.arqrscanner/files/site.bundle
+    static final String EXTRA_CONTENT_BUNDLE_PATH = "content_bundle";
+    // intent extra prefetching content listed in a manifest, given as a path or an url, e.g.
+    //     --es prefetch_manifest /sdcard/Android/data/pl.ingensol.arqrscanner/files/shift.txt
+    static final String EXTRA_PREFETCH_MANIFEST = "prefetch_manifest";
+
+    // single-shot scan, returning the first confirmed code to the caller, e.g.
+    // startActivityForResult(new Intent(BarcodeCaptureActivity.ACTION_SCAN), requestCode)
+    public static final String ACTION_SCAN = "pl.ingensol.arqrscanner.SCAN";
+    public static final String EXTRA_BARCODE = "barcode";
+    public static final String EXTRA_VALUE = "value";
+    public static final String EXTRA_TIME_TO_RESULT_MS = "time_to_result_ms";
+    static final String EXTRA_CONFIRMATION_FRAMES = "confirmation_frames";
+
+    private static final int SINGLE_SHOT_CONFIRMATION_FRAMES_COUNT = 2;
+    private static final int SINGLE_SHOT_PREVIEW_WIDTH = 1280;
+    private static final int SINGLE_SHOT_PREVIEW_HEIGHT = 720;
+    private static final float SINGLE_SHOT_FPS = 30.0f;
+
+    // whether an activity was created in this process before, i.e. the launch was not cold
+    private static boolean sCreatedBefore;
+
     private CameraSource mCameraSource;
     private CameraSourcePreview mPreview;
     private GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
+    private RetainedPipeline mPipeline;
+    private boolean mPipelineRetained;
+    private PipelineMetrics mMetrics;
+    private PerformanceHud mPerformanceHud;
+    private MetricsExporter mMetricsExporter;
+    private QualityGovernor mQualityGovernor;
     /**
-     * An {@link OrientationEventListener} used to determine when device rotation has occurred.
-     * This is mainly necessary for when the device is rotated by 180 degrees, in which case
-     * onCreate or onConfigurationChanged is not called as the view dimensions remain the same,
-     * but the orientation of the has changed, and thus the preview rotation must be updated.
+     * An {@link OrientationSensor} used to determine the device rotation, so that the presented
+     * content stays upright as the device is tilted.  This is also necessary for when the device
+     * is rotated by 180 degrees, in which case onCreate or onConfigurationChanged is not called
+     * as the view dimensions remain the same, but the orientation of the device has changed.
      */
-    private OrientationEventListener mOrientationListener;
+    private OrientationSensor mOrientationSensor;
 
     // helper objects for detecting taps and pinches.
     private GestureDetector gestureDetector;
 
+    // elapsed realtime when the launch started, used to measure the time to the result
+    private long mLaunchedAtMillis;
+    private boolean mResultDelivered;
+
     /**
      * Initializes the UI and creates the detector pipeline.
      */
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
+        mLaunchedAtMillis = launchedAtMillis();
+        RetainedPipeline retainedPipeline = (RetainedPipeline) getLastCustomNonConfigurationInstance();
+        mPipeline = retainedPipeline != null ? retainedPipeline : new RetainedPipeline();
+        mMetrics = mPipeline.getMetrics();
+        long inflateStartNanos = PipelineMetrics.start();
         setContentView(R.layout.barcode_capture);
+        mMetrics.recordSince(PipelineMetrics.Stage.LAYOUT_INFLATE, inflateStartNanos);
 
         mPreview = (CameraSourcePreview) findViewById(R.id.preview);
+        mPreview.setMetrics(mMetrics);
         mGraphicOverlay = (GraphicOverlay<BarcodeGraphic>) findViewById(R.id.graphicOverlay);
-
-        mOrientationListener = new OrientationEventListener(this, SensorManager.SENSOR_DELAY_NORMAL) {
+        mGraphicOverlay.setMetrics(mMetrics);
+        mPerformanceHud = new PerformanceHud((TextView) findViewById(R.id.performanceHud), mMetrics);
+        mMetricsExporter = new MetricsExporter(new File(getFilesDir(), "metrics"), mMetrics);
+        mQualityGovernor = new QualityGovernor(this, mMetrics, new QualityGovernor.Listener() {
             @Override
-            public void onOrientationChanged(int orientation) {
-                mGraphicOverlay.onOrientationChanged(orientation);
+            public void onQualityLevelChanged(QualityLevel level) {
+                mGraphicOverlay.setMinDrawIntervalMillis(level.getMinDrawIntervalMillis());
+                mPipeline.applyQualityLevel(level);
             }
-        };
+        });
+        if (retainedPipeline != null) {
+            // recreated after a configuration change - the pipeline keeps running, only the new
+            // views are attached to it
+            mCameraSource = mPipeline.getCameraSource();
+            mPipeline.attachOverlay(mGraphicOverlay);
+        } else if (getIntent().getBooleanExtra(EXTRA_INVENTORY, false)) {
+            ScanJournal scanJournal = new ScanJournal(new File(getFilesDir(), "journal"));
+            mPipeline.startInventory(scanJournal, createJournalUploader(scanJournal),
+                    new InventoryBatchWriter(new File(getFilesDir(), "inventory")));
+        }
+        if (retainedPipeline == null) {
+            mPipeline.setContentBundles(new ContentBundleStore(new File(getFilesDir(), "content")));
+            String contentBundlePath = getIntent().getStringExtra(EXTRA_CONTENT_BUNDLE_PATH);
+            if (contentBundlePath != null) {
+                installContentBundle(new File(contentBundlePath));
+            }
+        }
+        if (mPipeline.getInventorySession() != null) {
+            TextView countView = (TextView) findViewById(R.id.inventoryCount);
+            countView.setVisibility(View.VISIBLE);
+            mPipeline.attachInventoryCountView(countView);
+        }
 
-        // Check for the camera permission before accessing the camera.  If the
-        // permission is not granted yet, request permission.
-        int rc = ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA);
-        if (rc == PackageManager.PERMISSION_GRANTED) {
-            createCameraSource();
+        mOrientationSensor = new OrientationSensor(this, new OrientationSensor.Listener() {
+            @Override
+            public void onOrientationChanged(float degrees) {
+                mGraphicOverlay.setRotationDegrees(degrees);
+            }
+        });
+
+        String bulkPath = getIntent().getStringExtra(EXTRA_BULK_PATH);
+        if (retainedPipeline != null) {
+            // the camera source, for which the permission has been granted, or bulk decoding is retained
+            Log.d(TAG, "Reattached the retained scanning pipeline");
+        } else if (bulkPath != null) {
+            // files are decoded instead of the camera preview, by the pipeline, so that decoding
+            // is neither interrupted nor started again when the activity is recreated
+            String outputPath = getIntent().getStringExtra(EXTRA_BULK_OUTPUT);
+            File output = outputPath != null ? new File(outputPath) : new File(getFilesDir(), "bulk-results.jsonl");
+            mPipeline.startBulkDecoding(getApplicationContext(), new File(bulkPath), output);
         } else {
-            requestCameraPermission();
+            // Check for the camera permission before accessing the camera.  If the
+            // permission is not granted yet, request permission.
+            int rc = ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA);
+            if (rc == PackageManager.PERMISSION_GRANTED) {
+                createCameraSource();
+            } else {
+                requestCameraPermission();
+            }
         }
 
         gestureDetector = new GestureDetector(this, new CaptureGestureListener());
@@ -160,95 +279,293 @@ public final class BarcodeCaptureActivity extends AppCompatActivity {
      */
     @SuppressLint("InlinedApi")
     private void createCameraSource() {
-        Context context = getApplicationContext();
+        if (ACTION_SCAN.equals(getIntent().getAction())) {
+            createSingleShotCameraSource();
+            return;
+        }
 
         // A barcode detector is created to track barcodes.  An associated multi-processor instance
         // is set to receive the barcode detection results, track the barcodes, and maintain
         // graphics for each barcode on screen.  The factory is used by the multi-processor to
-        // create a separate tracker instance for each barcode.
-        BarcodeDetector barcodeDetector =
-                new BarcodeDetector.Builder(context)
-                        .setBarcodeFormats(Barcode.QR_CODE)
-                        .build();
-        Timer timer = new Timer();
-
-        TrackersCountListener trackersCountListener = new TrackersCountListener(timer) {
-            @Override
-            protected void onTrackersCountChanged(int size) {
-                if (size == 0) {
-                    enableContinuousFocus();
-                } else if (size > 0) {
-                    disableContinuousFocus();
-                }
+        // create a separate tracker instance for each barcode.  The detector itself is created in
+        // the background, while the camera opens.
+        DeferredDetector<Barcode> barcodeDetector = warmUpBarcodeDetector();
+        BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(mGraphicOverlay, mPipeline.getFocusModeController(),
+                mMetrics, mPipeline.getInventorySession(), mPipeline.getContentBundles());
+        // content is never drawn larger than the display
+        DisplayMetrics metrics = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getMetrics(metrics);
+        barcodeFactory.getLoadedValueMemo().setTargetSize(Math.max(metrics.widthPixels, metrics.heightPixels));
+        // detections are paced and frames are downscaled as the quality governor decides
+        PacedProcessor<Barcode> pacedProcessor = new PacedProcessor<>(new TrackerContinuityProcessor(
+                new MultiProcessor.Builder<>(barcodeFactory).build(), barcodeFactory));
+        Detector.Processor<Barcode> processor = pacedProcessor;
+
+        // frames are downscaled for detection while codes are large
+        AdaptiveResolutionDetector resolutionDetector = new AdaptiveResolutionDetector(barcodeDetector, mMetrics);
+        Detector<Barcode> detector = resolutionDetector;
+        String recordPath = getIntent().getStringExtra(EXTRA_RECORD_PATH);
+        if (recordPath != null) {
+            try {
+                boolean withImages = getIntent().getBooleanExtra(EXTRA_RECORD_FRAMES, false);
+                detector = new RecordingDetector(detector, new FrameRecordingWriter(new File(recordPath), withImages));
+                Log.i(TAG, "Recording frames to: " + recordPath);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start recording to: " + recordPath, e);
             }
+        }
+        detector = new TimedDetector<>(detector, mMetrics);
+        detector.setProcessor(processor);
 
-            private void enableContinuousFocus() {
-                Camera camera = getCamera(mCameraSource);
-                if (camera != null) {
-                    Camera.Parameters parameters = camera.getParameters();
-                    if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
-                        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
-                        camera.setParameters(parameters);
-                    }
-                }
+        String replayPath = getIntent().getStringExtra(EXTRA_REPLAY_PATH);
+        if (replayPath != null) {
+            startReplay(replayPath, processor, detector, barcodeDetector);
+            return;
+        }
+
+        // Creates and starts the camera.  Note that this uses a higher resolution in comparison
+        // to other detection examples to enable the barcode detector to detect small barcodes
+        // at long distances.
+        mCameraSource = new CameraSource.Builder(getApplicationContext(), detector)
+                // for a good ratio - from https://github.com/googlesamples/android-vision/issues/23
+                .setRequestedPreviewSize(metrics.heightPixels, metrics.widthPixels)
+                .setAutoFocusEnabled(true)
+                .build();
+        mPipeline.setCamera(mCameraSource, barcodeFactory, resolutionDetector, pacedProcessor);
+
+        String manifest = getIntent().getStringExtra(EXTRA_PREFETCH_MANIFEST);
+        if (manifest != null) {
+            try {
+                startPrefetch(manifest.contains("://") ? new URL(manifest) : new File(manifest).toURI().toURL());
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "Invalid prefetch manifest: " + manifest, e);
             }
+        }
+    }
 
-            private void disableContinuousFocus() {
-                Camera camera = getCamera(mCameraSource);
-                if (camera != null) {
-                    Camera.Parameters parameters = camera.getParameters();
-                    if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_FIXED)) {
-                        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_FIXED);
-                        camera.setParameters(parameters);
-                    } else if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
-                        camera.setParameters(parameters);
+    /**
+     * Prefetches content listed in the manifest in the background.
+     */
+    private void startPrefetch(URL manifestUrl) {
+        mPipeline.prefetch(manifestUrl);
+        Toast.makeText(this, R.string.prefetch_started, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Creates the camera for the single-shot scan, tuned for the time to the first result rather
+     * than for small codes at long distances.  A lower preview resolution is detected faster, and
+     * detections go straight to a {@link SingleShotProcessor}, so no trackers, graphics or content
+     * are created.
+     */
+    private void createSingleShotCameraSource() {
+        int confirmationFramesCount = getIntent().getIntExtra(EXTRA_CONFIRMATION_FRAMES, SINGLE_SHOT_CONFIRMATION_FRAMES_COUNT);
+        Detector<Barcode> detector = new TimedDetector<>(warmUpBarcodeDetector(), mMetrics);
+        detector.setProcessor(new SingleShotProcessor(confirmationFramesCount, new SingleShotProcessor.Listener() {
+            @Override
+            public void onConfirmed(final Barcode barcode) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverResult(barcode);
                     }
-                }
+                });
             }
+        }));
+
+        mCameraSource = new CameraSource.Builder(getApplicationContext(), detector)
+                .setRequestedPreviewSize(SINGLE_SHOT_PREVIEW_WIDTH, SINGLE_SHOT_PREVIEW_HEIGHT)
+                .setRequestedFps(SINGLE_SHOT_FPS)
+                .setAutoFocusEnabled(true)
+                .build();
+    }
+
+    /**
+     * Returns the barcode to the calling activity and finishes.  The camera is stopped at once,
+     * without waiting for the activity to be paused.
+     */
+    private void deliverResult(Barcode barcode) {
+        if (mResultDelivered) {
+            return;
+        }
+        mResultDelivered = true;
+        long timeToResultMillis = SystemClock.elapsedRealtime() - mLaunchedAtMillis;
+        Log.i(TAG, "Scan result after " + timeToResultMillis + " ms since launch");
+
+        Intent data = new Intent();
+        data.putExtra(EXTRA_BARCODE, barcode);
+        data.putExtra(EXTRA_VALUE, barcode.rawValue);
+        data.putExtra(EXTRA_TIME_TO_RESULT_MS, timeToResultMillis);
+        setResult(RESULT_OK, data);
+        if (mPreview != null) {
+            mPreview.stop();
+        }
+        finish();
+    }
 
-            // from https://github.com/googlesamples/android-vision/issues/5
-            private Camera getCamera(@NonNull CameraSource cameraSource)  {
-                Field[] declaredFields = CameraSource.class.getDeclaredFields();
-
-                for (Field field : declaredFields) {
-                    if (field.getType() == Camera.class) {
-                        field.setAccessible(true);
-                        try {
-                            Camera camera = (Camera) field.get(cameraSource);
-                            if (camera != null) {
-                                return camera;
-                            }
-                        } catch (IllegalAccessException ex) {
-                            throw new RuntimeException(ex);
+    /**
+     * Returns elapsed realtime when this launch started.  For the first activity of a process
+     * started for it, this is the start of the process, so that cold launches are measured whole.
+     */
+    private static long launchedAtMillis() {
+        boolean coldLaunch = !sCreatedBefore;
+        sCreatedBefore = true;
+        if (coldLaunch && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartElapsedRealtime();
+        }
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Creates the barcode detector on a background thread, as loading its native library takes
+     * long on a cold start.  Play Services, which provide the library, are checked there first.
+     * The returned detector skips frames until then, while the camera is already opened.
+     */
+    private DeferredDetector<Barcode> warmUpBarcodeDetector() {
+        final DeferredDetector<Barcode> deferredDetector = new DeferredDetector<>(mMetrics);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                checkPlayServices();
+
+                long startNanos = PipelineMetrics.start();
+                BarcodeDetector barcodeDetector;
+                boolean operational;
+                TraceCompat.beginSection("detector warm-up");
+                try {
+                    barcodeDetector = createBarcodeDetector(getApplicationContext());
+                    operational = barcodeDetector.isOperational();
+                } finally {
+                    TraceCompat.endSection();
+                }
+                mMetrics.recordSince(PipelineMetrics.Stage.DETECTOR_WARM_UP, startNanos);
+                deferredDetector.setDelegate(barcodeDetector);
+
+                if (!operational) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            handleNotOperational();
                         }
-                    }
+                    });
                 }
-
-                return null;
             }
+        }, "detector-warm-up").start();
+        return deferredDetector;
+    }
 
-        };
-        BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(mGraphicOverlay, trackersCountListener, timer);
-        barcodeDetector.setProcessor(
-                new MultiProcessor.Builder<>(barcodeFactory).build());
+    /**
+     * Installs the given content bundle in the background.  Codes already presented keep their
+     * content, new ones are looked up in the installed bundle.
+     */
+    private void installContentBundle(final File bundleFile) {
+        final ContentBundleStore contentBundles = mPipeline.getContentBundles();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    contentBundles.install(bundleFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not install content bundle: " + bundleFile, e);
+                }
+            }
+        }, "content-bundle-install").start();
+    }
 
-        if (!barcodeDetector.isOperational()) {
-            handleNotOperational();
+    /**
+     * Checks that the device has Play Services available and, if not, shows the error dialog.
+     * May be called on any thread.
+     */
+    private void checkPlayServices() {
+        final int code = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(
+                getApplicationContext());
+        if (code != ConnectionResult.SUCCESS) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isFinishing()) {
+                        Dialog dlg =
+                                GoogleApiAvailability.getInstance().getErrorDialog(BarcodeCaptureActivity.this, code, RC_HANDLE_GMS);
+                        dlg.show();
+                    }
+                }
+            });
         }
+    }
 
-        // Creates and starts the camera.  Note that this uses a higher resolution in comparison
-        // to other detection examples to enable the barcode detector to detect small barcodes
-        // at long distances.
-        DisplayMetrics metrics = new DisplayMetrics();
-        getWindowManager().getDefaultDisplay().getMetrics(metrics);
-        mCameraSource = new CameraSource.Builder(getApplicationContext(), barcodeDetector)
-                // for a good ratio - from https://github.com/googlesamples/android-vision/issues/23
-                .setRequestedPreviewSize(metrics.heightPixels, metrics.widthPixels)
-                .setAutoFocusEnabled(true)
+    /**
+     * Creates the detector used both for the camera and for decoding files.
+     */
+    static BarcodeDetector createBarcodeDetector(Context context) {
+        return new BarcodeDetector.Builder(context)
+                .setBarcodeFormats(Barcode.QR_CODE)
                 .build();
     }
 
+    /**
+     * Replays a recording through the pipeline on a background thread in place of the camera
+     * and reports latency and throughput when done.  Waits for the barcode detector to be
+     * created first, so that no frame is skipped.
+     */
+    private void startReplay(final String replayPath, final Detector.Processor<Barcode> processor,
+                             final Detector<Barcode> detector, final DeferredDetector<Barcode> barcodeDetector) {
+        final boolean paced = getIntent().getBooleanExtra(EXTRA_REPLAY_PACED, false);
+        final String contentBaseUrl = getIntent().getStringExtra(EXTRA_REPLAY_CONTENT_BASE_URL);
+        final FrameRecordingReader.UrlRewriter urlRewriter = contentBaseUrl == null ? null :
+                new FrameRecordingReader.UrlRewriter() {
+                    @Override
+                    public String rewrite(String url) {
+                        // the base url is literal, not a replacement pattern with group references
+                        return url.replaceFirst("^https?://[^/]+", Matcher.quoteReplacement(contentBaseUrl));
+                    }
+                };
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    barcodeDetector.awaitDelegate();
+                    FrameRecordingReader reader = new FrameRecordingReader(new File(replayPath), urlRewriter);
+                    try {
+                        ReplayDriver driver = new ReplayDriver(processor, detector, mGraphicOverlay);
+                        result = "Replay of " + replayPath + ": " + driver.replay(reader, paced);
+                    } finally {
+                        reader.close();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    Log.e(TAG, "Replay of " + replayPath + " failed", e);
+                    result = "Replay failed: " + e.getMessage();
+                }
+                Log.i(TAG, result);
+                final String message = result;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(BarcodeCaptureActivity.this, message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "replay").start();
+    }
+
+    /**
+     * Starts uploading the journal to the endpoint given in the intent, if any.
+     */
+    private JournalUploader createJournalUploader(ScanJournal journal) {
+        String uploadUrl = getIntent().getStringExtra(EXTRA_UPLOAD_URL);
+        if (uploadUrl == null) {
+            return null;
+        }
+        try {
+            JournalUploader uploader = new JournalUploader(journal, new URL(uploadUrl));
+            uploader.start();
+            return uploader;
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Invalid journal upload url: " + uploadUrl, e);
+            return null;
+        }
+    }
+
     private void handleNotOperational() {
         // Note: The first time that an app using the barcode or face API is installed on a
         // device, GMS will download a native libraries to the device in order to do detection.
@@ -279,8 +596,10 @@ public final class BarcodeCaptureActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         startCameraSource();
-        if (mOrientationListener != null && mOrientationListener.canDetectOrientation()) {
-            mOrientationListener.enable();
+        mMetricsExporter.start();
+        mQualityGovernor.start();
+        if (mOrientationSensor != null && !mOrientationSensor.start()) {
+            Log.w(TAG, "Device orientation cannot be detected");
         }
     }
 
@@ -289,8 +608,15 @@ public final class BarcodeCaptureActivity extends AppCompatActivity {
      */
     @Override
     protected void onPause() {
-        if (mOrientationListener != null) {
-            mOrientationListener.disable();
+        mPerformanceHud.hide();
+        mMetricsExporter.stop();
+        mQualityGovernor.stop();
+        // a batch is not closed just because the activity is being recreated
+        if (mPipeline.getInventorySession() != null && !isChangingConfigurations()) {
+            mPipeline.getInventorySession().closeBatch();
+        }
+        if (mOrientationSensor != null) {
+            mOrientationSensor.stop();
         }
         if (mPreview != null) {
             mPreview.stop();
@@ -305,9 +631,31 @@ public final class BarcodeCaptureActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mPipelineRetained) {
+            // the camera source is handed over to the recreated activity
+            if (mPreview != null) {
+                mPreview.detach();
+            }
+            return;
+        }
         if (mPreview != null) {
             mPreview.release();
         }
+        mPipeline.release();
+    }
+
+    /**
+     * Hands the running pipeline over to the activity recreated after a configuration change.
+     * The camera itself is stopped and started again with the new preview surface, as the
+     * camera source is bound to the surface and to the display rotation.
+     */
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        if (!mPipeline.hasCamera() && !mPipeline.hasBulkDecoding()) {
+            return null;
+        }
+        mPipelineRetained = true;
+        return mPipeline;
     }
 
     /**
@@ -365,67 +713,46 @@ public final class BarcodeCaptureActivity extends AppCompatActivity {
      * again when the camera source is created.
      */
     private void startCameraSource() throws SecurityException {
-        // check that the device has play services available.
-        int code = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(
-                getApplicationContext());
-        if (code != ConnectionResult.SUCCESS) {
-            Dialog dlg =
-                    GoogleApiAvailability.getInstance().getErrorDialog(this, code, RC_HANDLE_GMS);
-            dlg.show();
-        }
-
         if (mCameraSource != null) {
-            try {
-                mPreview.start(mCameraSource, mGraphicOverlay);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to start camera source.", e);
-                mCameraSource.release();
-                mCameraSource = null;
-            }
+            // the camera is opened in the background
+            mMetrics.onCameraStarting();
+            mPreview.start(mCameraSource, mGraphicOverlay);
         }
     }
 
     /**
-     * onTap returns the tapped barcode result to the calling Activity.
+     * onTap returns the tapped barcode result to the calling Activity, or starts prefetching if
+     * the tapped barcode holds a prefetch manifest.
      *
      * @param rawX - the raw position of the tap
      * @param rawY - the raw position of the tap.
-     * @return true if the activity is ending.
+     * @return true if the tap was handled.
      */
     private boolean onTap(float rawX, float rawY) {
-        // Find tap point in preview frame coordinates.
+        // Find tap point in view coordinates.
         int[] location = new int[2];
         mGraphicOverlay.getLocationOnScreen(location);
-        float x = (rawX - location[0]) / mGraphicOverlay.getWidthScaleFactor();
-        float y = (rawY - location[1]) / mGraphicOverlay.getHeightScaleFactor();
+        float x = rawX - location[0];
+        float y = rawY - location[1];
 
-        // Find the barcode whose center is closest to the tapped point.
+        // Find the topmost barcode at the tapped point or, if there is none, the closest one.
         Barcode best = null;
-        float bestDistance = Float.MAX_VALUE;
-        for (BarcodeGraphic graphic : mGraphicOverlay.getGraphics()) {
-            Barcode barcode = graphic.getPresentedObject().getBarcode();
-            if (barcode.getBoundingBox().contains((int) x, (int) y)) {
-                // Exact hit, no need to keep looking.
-                best = barcode;
-                break;
-            }
-            float dx = x - barcode.getBoundingBox().centerX();
-            float dy = y - barcode.getBoundingBox().centerY();
-            float distance = (dx * dx) + (dy * dy);  // actually squared distance
-            if (distance < bestDistance) {
-                best = barcode;
-                bestDistance = distance;
-            }
+        BarcodeGraphic graphic = mGraphicOverlay.findGraphicAt(x, y);
+        if (graphic != null && graphic.getPresentedObject() != null) {
+            best = graphic.getPresentedObject().getBarcode();
         }
 
-        // TODO: better handling
-//        if (best != null) {
-//            Intent data = new Intent();
-//            data.putExtra(BarcodeObject, best);
-//            setResult(CommonStatusCodes.SUCCESS, data);
-//            finish();
-//            return true;
-//        }
+        // only a caller waiting for a result gets the tapped barcode
+        if (best != null && getCallingActivity() != null) {
+            deliverResult(best);
+            return true;
+        }
+        // a tapped manifest code starts prefetching the content it lists
+        URL manifestUrl = best != null ? ContentPrefetcher.parseManifestPayload(best.rawValue) : null;
+        if (manifestUrl != null && mPipeline.hasCamera()) {
+            startPrefetch(manifestUrl);
+            return true;
+        }
         return false;
     }
 
@@ -434,6 +761,15 @@ public final class BarcodeCaptureActivity extends AppCompatActivity {
         public boolean onSingleTapConfirmed(MotionEvent e) {
             return onTap(e.getRawX(), e.getRawY()) || super.onSingleTapConfirmed(e);
         }
+
+        /**
+         * Double tap is the developer toggle of the performance HUD.
+         */
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            mPerformanceHud.toggle();
+            return true;
+        }
     }
 
 }
\ No newline at end of file
@@ -17,64 +17,56 @@ package pl.ingensol.arqrscanner;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.Point;
-import android.graphics.PointF;
-import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
 
 import pl.ingensol.arqrscanner.camera.GraphicOverlay;
+import pl.ingensol.arqrscanner.geometry.Homography;
+import pl.ingensol.arqrscanner.geometry.QuadGeometry;
+import pl.ingensol.arqrscanner.geometry.QuadTransform;
 
 /**
  * Graphic instance for rendering barcode position, size, and ID within an associated graphic
- * overlay view.
+ * overlay view.  Both images and text payloads are presented as bitmaps (text is rendered into
+ * a card by {@link TextCardRenderer}), warped onto the barcode.  The bitmap is taken from the
+ * {@link ImagePyramid} level matching the on-screen size of the barcode, or from the
+ * {@link AnimatedContent} frame due at the time of drawing, in which case the graphic requests
+ * a redraw for the next frame.<p>
+ *
+ * The geometry is computed by {@link QuadTransform}, which caches it between frames, so
+ * a steadily tracked barcode does not pay for it on every frame.  This class only adapts it to
+ * the overlay coordinates and {@link Matrix}.
  */
 public class BarcodeGraphic extends GraphicOverlay.Graphic {
 
-    private final int POINTS_IN_RECT_COUNT = 4;
-    private final int POINTS_IN_RECT_XY_COUNT = POINTS_IN_RECT_COUNT * 2;
-    private final int FONT_HEIGHT = 36;
+    // graphics are drawn by the UI thread only, so they can share the paint
+    private static final Paint IMAGE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     private final float SCALE = 2.5f;
     private int mId;
 
-    private Paint mRectPaint;
-    private Paint mImagePaint;
-    private Paint mTextPaint;
-
-    private float[] mImagePoints;
     private float[] mTranslatedCornerPoints;
-    private float[] mRotatedCornerPoints;
-    private float[] mBarcodePoints;
-    private float[] mScaledBarcodePoints;
+    private float[] mQuadBounds;
+    private float[] mMatrixValues;
 
-    private Matrix mMatrix;
-    private Path mPath;
+    private QuadTransform mQuadTransform;
+    private Matrix mImageMatrix;
+    private int mImageLevel;
 
     private volatile PresentedObject mPresentedObject;
 
     BarcodeGraphic(GraphicOverlay overlay) {
         super(overlay);
 
-        mRectPaint = new Paint();
-        mRectPaint.setColor(Color.WHITE);
-        mRectPaint.setStyle(Paint.Style.FILL);
-
-        mImagePaint = new Paint();
+        mTranslatedCornerPoints = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+        mQuadBounds = new float[4];
+        mMatrixValues = new float[Homography.VALUES_COUNT];
 
-        mTextPaint = new Paint();
-        mTextPaint.setColor(Color.BLACK);
-        mTextPaint.setTextSize(FONT_HEIGHT);
-
-        mImagePoints = new float[POINTS_IN_RECT_XY_COUNT];
-        mBarcodePoints = new float[POINTS_IN_RECT_XY_COUNT];
-        mTranslatedCornerPoints = new float[POINTS_IN_RECT_XY_COUNT];
-        mRotatedCornerPoints = new float[POINTS_IN_RECT_XY_COUNT];
-        mScaledBarcodePoints = new float[POINTS_IN_RECT_XY_COUNT];
-
-        mMatrix = new Matrix();
-        mPath = new Path();
+        mQuadTransform = new QuadTransform(SCALE);
+        mImageMatrix = new Matrix();
     }
 
     public int getId() {
@@ -89,6 +81,31 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
         return mPresentedObject;
     }
 
+    /**
+     * Prepares the graphic for presenting another barcode, after it was removed from the overlay.
+     * The cached transformation is left to be recomputed by the UI thread, as the new barcode
+     * corners will not match the cached ones.
+     */
+    void reset() {
+        mId = 0;
+        mPresentedObject = null;
+    }
+
+    /**
+     * Sets how far the barcode corners have to move, or the device has to rotate, before the
+     * cached transformation is recomputed.  Zero thresholds recompute it whenever anything changes.
+     */
+    void setTransformThresholds(float moveThresholdPx, float rotationThresholdDegrees) {
+        mQuadTransform.setThresholds(moveThresholdPx, rotationThresholdDegrees);
+    }
+
+    /**
+     * Returns how many times the transformation was computed since the graphic was created.
+     */
+    int getTransformComputationsCount() {
+        return mQuadTransform.getComputationsCount();
+    }
+
     /**
      * Updates the barcode instance from the detection of the most recent frame.  Invalidates the
      * relevant portions of the overlay to trigger a redraw.
@@ -98,137 +115,91 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
         postInvalidate();
     }
 
+    /**
+     * Computes bounds of the annotation scaled around the barcode.
+     */
+    @Override
+    public boolean computeBounds(RectF bounds) {
+        PresentedObject presentedObject = mPresentedObject;
+        if (presentedObject == null || !isDrawable(presentedObject.getLoadedValue())) {
+            return false;
+        }
+        updateTransform(presentedObject);
+
+        QuadGeometry.computeBounds(mQuadTransform.getQuad(), mQuadBounds);
+        bounds.set(mQuadBounds[0], mQuadBounds[1], mQuadBounds[2], mQuadBounds[3]);
+        return true;
+    }
+
     /**
      * Draws the barcode annotations for position, size, and raw value on the supplied canvas.
      */
     @Override
     public void draw(Canvas canvas) {
         PresentedObject presentedObject = mPresentedObject;
-        if (presentedObject == null) {
+        if (presentedObject == null || !isDrawable(presentedObject.getLoadedValue())) {
             return;
         }
-        drawObject(canvas, presentedObject);
+        drawImage(canvas, presentedObject);
+    }
+
+    private static boolean isDrawable(Object loadedValue) {
+        return loadedValue instanceof ImagePyramid || loadedValue instanceof AnimatedContent;
     }
 
-    private void drawObject(Canvas canvas, PresentedObject presentedObject) {
+    private void updateTransform(PresentedObject presentedObject) {
         translate(presentedObject.getBarcode().cornerPoints, mTranslatedCornerPoints);
-        PointF center = findCenter(mTranslatedCornerPoints);
-        computeBarcodePoints(mTranslatedCornerPoints, mBarcodePoints, center);
-        if (presentedObject.getKey() instanceof PresentedImageKey) {
-            drawImage(canvas, presentedObject, mBarcodePoints, center);
-        } else {
-            drawRawText(canvas, presentedObject, mBarcodePoints, center);
+        Object loadedValue = presentedObject.getLoadedValue();
+        if (loadedValue instanceof AnimatedContent) {
+            AnimatedContent animation = (AnimatedContent) loadedValue;
+            int width = animation.getWidth();
+            int height = animation.getHeight();
+            if (mQuadTransform.update(mTranslatedCornerPoints, getRotationDegrees(), width, height)
+                    && Homography.rectToQuad(width, height, mQuadTransform.getQuad(), mMatrixValues)) {
+                mImageMatrix.setValues(mMatrixValues);
+            }
+            return;
+        }
+
+        ImagePyramid pyramid = (ImagePyramid) loadedValue;
+        if (!mQuadTransform.update(mTranslatedCornerPoints, getRotationDegrees(), pyramid.getWidth(), pyramid.getHeight())) {
+            return;
+        }
+
+        mImageLevel = pyramid.selectLevel(mQuadTransform.getQuadArea());
+        Bitmap bitmap = pyramid.getLevel(mImageLevel);
+        if (Homography.rectToQuad(bitmap.getWidth(), bitmap.getHeight(), mQuadTransform.getQuad(), mMatrixValues)) {
+            mImageMatrix.setValues(mMatrixValues);
         }
     }
 
     private void translate(Point[] src, float[] dst) {
-        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
+        for (int i = 0; i < QuadGeometry.POINTS_IN_RECT_COUNT; i++) {
             Point point = src[i];
             dst[i * 2] = translateX(point.x);
             dst[i * 2 + 1] = translateY(point.y);
         }
     }
 
-    private PointF findCenter(float[] points) {
-        float xSum = 0;
-        float ySum = 0;
-        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
-            float x = points[i * 2];
-            float y = points[i * 2 + 1];
-            xSum += x;
-            ySum += y;
+    private void drawImage(Canvas canvas, PresentedObject presentedObject) {
+        updateTransform(presentedObject);
+        Object loadedValue = presentedObject.getLoadedValue();
+        if (loadedValue instanceof AnimatedContent) {
+            drawAnimationFrame(canvas, (AnimatedContent) loadedValue);
+            return;
         }
-        return new PointF(xSum / POINTS_IN_RECT_COUNT, ySum / POINTS_IN_RECT_COUNT);
+        ImagePyramid pyramid = (ImagePyramid) loadedValue;
+        canvas.drawBitmap(pyramid.getLevel(mImageLevel), mImageMatrix, IMAGE_PAINT);
     }
 
-    private void computeBarcodePoints(float[] src, float[] dst, PointF center) {
-        int topLeftPointXyIndex = findTopLeftPointXyIndex(src, center);
-        copyShifted(src, dst, topLeftPointXyIndex);
-    }
-
-    private int findTopLeftPointXyIndex(float[] points, PointF center) {
-        mMatrix.reset();
-        mMatrix.set(getRotationMatrix());
-        transformRespectToPoint(mMatrix, center);
-        mMatrix.mapPoints(mRotatedCornerPoints, points);
-
-        float minXY = Float.MAX_VALUE;
-        int topLeftPoint = -1;
-        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
-            float x = mRotatedCornerPoints[i * 2];
-            float y = mRotatedCornerPoints[i * 2 + 1];
-            float pointXY = x * x + y * y;
-            if (pointXY < minXY) {
-                minXY = pointXY;
-                topLeftPoint = i;
-            }
+    private void drawAnimationFrame(Canvas canvas, AnimatedContent animation) {
+        long uptimeMillis = SystemClock.uptimeMillis();
+        Bitmap frame = animation.getFrame(uptimeMillis);
+        if (frame != null) {
+            canvas.drawBitmap(frame, mImageMatrix, IMAGE_PAINT);
         }
-
-        return topLeftPoint * 2;
-    }
-
-    private void copyShifted(float[] src, float[] dst, int shift) {
-        int pointsFromShiftToEnd = POINTS_IN_RECT_XY_COUNT - shift;
-        System.arraycopy(src, shift, dst, 0,                    pointsFromShiftToEnd);
-        System.arraycopy(src, 0,     dst, pointsFromShiftToEnd, shift);
-    }
-
-    private void drawImage(Canvas canvas, PresentedObject presentedImage, float[] barcodePoints, PointF center) {
-        Bitmap bitmap = (Bitmap) presentedImage.getLoadedValue();
-
-        mImagePoints[0] = 0;
-        mImagePoints[1] = 0;
-
-        mImagePoints[2] = bitmap.getWidth();
-        mImagePoints[3] = 0;
-
-        mImagePoints[4] = bitmap.getWidth();
-        mImagePoints[5] = bitmap.getHeight();
-
-        mImagePoints[6] = 0;
-        mImagePoints[7] = bitmap.getHeight();
-
-        scalePointsWithRespectToPointKeepingRatio(barcodePoints, mScaledBarcodePoints, center, bitmap.getWidth(), bitmap.getHeight(), SCALE);
-
-        mMatrix.reset();
-        mMatrix.setPolyToPoly(mImagePoints, 0, mScaledBarcodePoints, 0, POINTS_IN_RECT_COUNT);
-
-        canvas.drawBitmap(bitmap, mMatrix, mImagePaint);
-    }
-
-    private void drawRawText(Canvas canvas, PresentedObject presentedText, float[] barcodePoints, PointF center) {
-        scalePointsWithRespectToPointKeepingRatio(barcodePoints, mScaledBarcodePoints, center, 1, 1, SCALE);
-
-        mPath.reset();
-        mPath.moveTo(mScaledBarcodePoints[0], mScaledBarcodePoints[1]);
-
-        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
-            mPath.lineTo(
-                    mScaledBarcodePoints[(i + 1) % POINTS_IN_RECT_COUNT * 2],
-                    mScaledBarcodePoints[(i + 1) % POINTS_IN_RECT_COUNT * 2 + 1]);
-        }
-        canvas.drawPath(mPath, mRectPaint);
-
-        Rect rect = presentedText.getBarcode().getBoundingBox();
-        PresentedTextKey key = (PresentedTextKey) presentedText.getKey();
-        canvas.drawText(key.getText(), translateX(rect.left), translateY(rect.top + FONT_HEIGHT), mTextPaint);
-    }
-
-    private void scalePointsWithRespectToPointKeepingRatio(float[] src, float[] dst, PointF point, int width, int height, float scale) {
-        float scaleBase = Math.min(width, height);
-        float scaleX = width / scaleBase * scale;
-        float scaleY = height / scaleBase * scale;
-
-        mMatrix.reset();
-        mMatrix.setScale(scaleX, scaleY);
-        transformRespectToPoint(mMatrix, point);
-
-        mMatrix.mapPoints(dst, src);
-    }
-
-    private void transformRespectToPoint(Matrix matrix, PointF point) {
-        matrix.preTranslate(-point.x, -point.y);
-        matrix.postTranslate(point.x, point.y);
+        // only while in view, as graphics out of view are not drawn
+        postInvalidateDelayed(animation.getMillisToNextFrame(uptimeMillis));
     }
 
-}
\ No newline at end of file
+}
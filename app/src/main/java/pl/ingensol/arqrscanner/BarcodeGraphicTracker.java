@@ -15,6 +15,9 @@
  */
 package pl.ingensol.arqrscanner;
 
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -24,10 +27,10 @@ import com.google.android.gms.vision.barcode.Barcode;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import pl.ingensol.arqrscanner.camera.GraphicOverlay;
+import pl.ingensol.arqrscanner.inventory.InventorySession;
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
 
 /**
  * Generic tracker which is used for tracking or reading a barcode (and can really be used for
@@ -37,21 +40,41 @@ import pl.ingensol.arqrscanner.camera.GraphicOverlay;
  */
 class BarcodeGraphicTracker extends Tracker<Barcode> {
 
-    private static final int HIDE_AFTER_DONE_DELAY_MS = 300;
+    // backoff of retries loading an image which is shown as text meanwhile
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 30000;
 
-    private final GraphicOverlay<BarcodeGraphic> mOverlay;
+    private final BarcodeTrackerFactory mFactory;
     private final BarcodeGraphic mGraphic;
     private final LoadedValueMemo mLoadedValueMemo;
     private final TrackersCountListener mTrackersCountListener;
-    private final Timer mTimer;
+    private final PipelineMetrics mMetrics;
+    private final InventorySession mInventorySession;
+    private String mConsistentRawValue;
+    private int mConsistentFramesCount;
+    // key the last raw value resolves to, so that it is not parsed on every frame
+    private String mResolvedRawValue;
+    private PresentedObjectKey mResolvedKey;
+    private long mRetryDelayMillis;
+    private long mNextRetryMillis;
+    /**
+     * Number of frames processed by the factory when this tracker was done, guarded by the factory.
+     */
+    long mDoneFrame;
+    /**
+     * Uptime when this tracker was done, guarded by the factory.
+     */
+    long mDoneMillis;
 
-    BarcodeGraphicTracker(GraphicOverlay<BarcodeGraphic> overlay, BarcodeGraphic graphic,
-                          LoadedValueMemo loadedValueMemo, TrackersCountListener trackersCountListener, Timer timer) {
-        mOverlay = overlay;
+    BarcodeGraphicTracker(BarcodeTrackerFactory factory, BarcodeGraphic graphic,
+                          LoadedValueMemo loadedValueMemo, TrackersCountListener trackersCountListener,
+                          PipelineMetrics metrics, InventorySession inventorySession) {
+        mFactory = factory;
         mGraphic = graphic;
         mLoadedValueMemo = loadedValueMemo;
         mTrackersCountListener = trackersCountListener;
-        mTimer = timer;
+        mMetrics = metrics;
+        mInventorySession = inventorySession;
     }
 
     /**
@@ -67,31 +90,88 @@ class BarcodeGraphicTracker extends Tracker<Barcode> {
      */
     @Override
     public void onUpdate(Detector.Detections<Barcode> detectionResults, Barcode barcode) {
+        mMetrics.recordDelivery();
+        TraceCompat.beginSection("tracker update");
+        try {
+            update(barcode);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    private void update(Barcode barcode) {
         mTrackersCountListener.onTrackerEnabled(this);
-        mOverlay.add(mGraphic);
+        // added on every update, so that the graphic moves to an overlay attached in the meantime
+        mFactory.getGraphicOverlay().add(mGraphic);
 
         if (barcode != null) {
-            URL url = parseUrl(barcode);
+            if (mInventorySession != null) {
+                countForInventory(barcode);
+            }
 
-            PresentedObject object = null;
-            if (url != null) {
-                PresentedObjectKey key = new PresentedImageKey(url);
-                Object loadedValue = mLoadedValueMemo.getLoadedValue(key);
-                if (loadedValue == null) {
-                    key = new PresentedTextKey(barcode.rawValue);
+            PresentedObjectKey key = resolveKey(barcode);
+            PresentedObject previous = mGraphic.getPresentedObject();
+            if (previous != null && previous.getLoadedValue() != null
+                    && TextUtils.equals(previous.getBarcode().rawValue, barcode.rawValue)
+                    && (key.equals(previous.getKey()) || SystemClock.uptimeMillis() < mNextRetryMillis)) {
+                // content is resolved once per tracked barcode, also when the tracker is re-attached,
+                // except for text shown in place of an image, which is retried with a backoff
+                mGraphic.updateItem(new PresentedObject(previous.getKey(), barcode, previous.getLoadedValue()));
+                return;
+            }
+
+            // while its text card is rendered, an image is not loaded again before the retry
+            boolean retryPending = key instanceof PresentedImageKey && SystemClock.uptimeMillis() < mNextRetryMillis;
+            Object loadedValue = retryPending ? null : mLoadedValueMemo.getLoadedValue(key);
+            // an image being decoded again is shown in a moment, without the text in between
+            if (loadedValue == null && key instanceof PresentedImageKey
+                    && (retryPending || !mLoadedValueMemo.isRefilling(key))) {
+                if (!retryPending) {
+                    // not downloaded, at a quality not allowing downloads or not prefetched yet
+                    scheduleRetry();
                 }
-                object = new PresentedObject(key, barcode, loadedValue);
-            } else {
-                PresentedObjectKey key = new PresentedTextKey(barcode.rawValue);
-                object = new PresentedObject(key, barcode, null);
+                key = new PresentedTextKey(barcode.rawValue);
+                loadedValue = mLoadedValueMemo.getLoadedValue(key);
             }
-            mGraphic.updateItem(object);
+            mGraphic.updateItem(new PresentedObject(key, barcode, loadedValue));
         } else {
             mGraphic.updateItem(null);
         }
     }
 
 
+    /**
+     * Offers the value to the inventory once it was read in enough consecutive frames.
+     */
+    private void countForInventory(Barcode barcode) {
+        if (!TextUtils.equals(barcode.rawValue, mConsistentRawValue)) {
+            mConsistentRawValue = barcode.rawValue;
+            mConsistentFramesCount = 0;
+        }
+        if (++mConsistentFramesCount == InventorySession.CONSISTENT_FRAMES_COUNT) {
+            mInventorySession.offer(barcode);
+        }
+    }
+
+    /**
+     * Returns the key of the content presented for the barcode: the image at its url, or its text.
+     */
+    private PresentedObjectKey resolveKey(Barcode barcode) {
+        if (mResolvedKey == null || !TextUtils.equals(barcode.rawValue, mResolvedRawValue)) {
+            URL url = parseUrl(barcode);
+            mResolvedKey = url != null ? PresentedImageKey.forUrl(url) : new PresentedTextKey(barcode.rawValue);
+            mResolvedRawValue = barcode.rawValue;
+            mRetryDelayMillis = 0;
+            mNextRetryMillis = 0;
+        }
+        return mResolvedKey;
+    }
+
+    private void scheduleRetry() {
+        mRetryDelayMillis = mRetryDelayMillis == 0 ? MIN_RETRY_DELAY_MS : Math.min(mRetryDelayMillis * 2, MAX_RETRY_DELAY_MS);
+        mNextRetryMillis = SystemClock.uptimeMillis() + mRetryDelayMillis;
+    }
+
     private URL parseUrl(Barcode barcode) {
         URL url = null;
         if (barcode.url != null && !TextUtils.isEmpty(barcode.url.url)) {
@@ -116,21 +196,52 @@ class BarcodeGraphicTracker extends Tracker<Barcode> {
     @Override
     public void onMissing(Detector.Detections<Barcode> detectionResults) {
         // do not hide graphics to avoid flickering of image
+        mConsistentFramesCount = 0;
     }
 
     /**
-     * Called when the item is assumed to be gone for good. Remove the graphic annotation from
-     * the overlay.
+     * Called when the item is assumed to be gone. The graphic stays in the overlay for a few more
+     * frames, so that the tracker can be re-attached if the barcode reappears, without flickering.
      */
     @Override
     public void onDone() {
-        // hide graphics after a while to have a chance for barcode to be handled by other tracker to avoid flickering
-        mTimer.schedule(new TimerTask() {
-            synchronized public void run() {
-                mTrackersCountListener.onTrackerDone(BarcodeGraphicTracker.this);
-                mOverlay.remove(mGraphic);
-            }
-        }, HIDE_AFTER_DONE_DELAY_MS);
+        mFactory.retain(this);
+    }
+
+    /**
+     * Returns the distance between the given barcode and the last one tracked, relative to the
+     * size of the latter, or {@link Float#MAX_VALUE} if the barcodes hold different values.
+     */
+    float distanceTo(Barcode barcode) {
+        PresentedObject presentedObject = mGraphic.getPresentedObject();
+        if (presentedObject == null || !TextUtils.equals(presentedObject.getBarcode().rawValue, barcode.rawValue)) {
+            return Float.MAX_VALUE;
+        }
+        Rect last = presentedObject.getBarcode().getBoundingBox();
+        Rect current = barcode.getBoundingBox();
+        float size = Math.max(1, Math.max(last.width(), last.height()));
+        float dx = current.exactCenterX() - last.exactCenterX();
+        float dy = current.exactCenterY() - last.exactCenterY();
+        return (float) Math.sqrt(dx * dx + dy * dy) / size;
+    }
+
+    /**
+     * Removes the graphic from the overlay, once the tracker was not re-attached.
+     */
+    void remove() {
+        mTrackersCountListener.onTrackerDone(this);
+        mFactory.getGraphicOverlay().remove(mGraphic);
+    }
+
+    /**
+     * Prepares the tracker for tracking another barcode.
+     */
+    void reset() {
+        mGraphic.reset();
+        mConsistentRawValue = null;
+        mConsistentFramesCount = 0;
+        mResolvedRawValue = null;
+        mResolvedKey = null;
     }
 
 }
\ No newline at end of file
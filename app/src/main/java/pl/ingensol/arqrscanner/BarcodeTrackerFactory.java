@@ -15,35 +15,208 @@
  */
 package pl.ingensol.arqrscanner;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
 import com.google.android.gms.vision.MultiProcessor;
 import com.google.android.gms.vision.Tracker;
 import com.google.android.gms.vision.barcode.Barcode;
 
-import java.util.Timer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 
 import pl.ingensol.arqrscanner.camera.GraphicOverlay;
+import pl.ingensol.arqrscanner.content.ContentBundleStore;
+import pl.ingensol.arqrscanner.inventory.InventorySession;
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+import pl.ingensol.arqrscanner.quality.QualityLevel;
 
 /**
  * Factory for creating a tracker and associated graphic to be associated with a new barcode.  The
- * multi-processor uses this factory to create barcode trackers as needed -- one for each barcode.
+ * multi-processor uses this factory to create barcode trackers as needed -- one for each barcode.<p>
+ *
+ * A done tracker keeps its graphic in the overlay for {@link #RETAIN_DONE_FRAMES_COUNT} more
+ * frames, but no longer than {@link #RETAIN_DONE_MS}, so that its graphic goes away also when
+ * frames stop coming.  If a barcode with the same value shows up nearby in the meantime, the
+ * multi-processor gets the done tracker again, together with its graphic and resolved content, so
+ * a barcode lost for a moment does not flicker.  Frames are counted by
+ * {@link TrackerContinuityProcessor}.<p>
+ *
+ * Trackers are recycled together with their graphics once the graphic is removed from the
+ * overlay, so scanning many codes in a row does not allocate a tracker for each of them.  The
+ * pool is bounded, so a scene with many codes does not keep all of them after it is gone.
  */
 class BarcodeTrackerFactory implements MultiProcessor.Factory<Barcode> {
 
-    private final GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
+    private static final int MAX_POOLED_TRACKERS_COUNT = 32;
+    static final int RETAIN_DONE_FRAMES_COUNT = 5;
+    private static final long RETAIN_DONE_MS = 1000;
+    /**
+     * How far, relative to its size, a barcode may move to be re-attached to a done tracker.
+     */
+    private static final float MAX_REATTACH_DISTANCE = 1f;
+
+    private volatile GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
     private final TrackersCountListener mTrackersCountListener;
-    private final Timer mTimer;
-    private final LoadedValueMemo mLoadedValueMemo = new LoadedValueMemo();
+    private final PipelineMetrics mMetrics;
+    private final LoadedValueMemo mLoadedValueMemo;
+    private final InventorySession mInventorySession;
+    private final ArrayDeque<BarcodeGraphicTracker> mPool = new ArrayDeque<>();
+    private final List<BarcodeGraphicTracker> mRetainedTrackers = new ArrayList<>();
+    private long mProcessedFramesCount;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mExpiryScheduled;
+    private final Runnable mExpiryTask = new Runnable() {
+        @Override
+        public void run() {
+            expireRetainedTrackers();
+            synchronized (BarcodeTrackerFactory.this) {
+                mExpiryScheduled = false;
+                scheduleExpiry();
+            }
+        }
+    };
 
-    BarcodeTrackerFactory(GraphicOverlay<BarcodeGraphic> barcodeGraphicOverlay, TrackersCountListener trackersCountListener, Timer timer) {
+    BarcodeTrackerFactory(GraphicOverlay<BarcodeGraphic> barcodeGraphicOverlay, TrackersCountListener trackersCountListener,
+                          PipelineMetrics metrics, InventorySession inventorySession, ContentBundleStore contentBundles) {
         mGraphicOverlay = barcodeGraphicOverlay;
         mTrackersCountListener = trackersCountListener;
-        mTimer = timer;
+        mMetrics = metrics;
+        mLoadedValueMemo = new LoadedValueMemo(metrics, contentBundles);
+        mInventorySession = inventorySession;
     }
 
     @Override
     public Tracker<Barcode> create(Barcode barcode) {
+        BarcodeGraphicTracker reattached = reattach(barcode);
+        if (reattached != null) {
+            return reattached;
+        }
+        synchronized (mPool) {
+            BarcodeGraphicTracker tracker = mPool.pollLast();
+            if (tracker != null) {
+                return tracker;
+            }
+        }
         BarcodeGraphic graphic = new BarcodeGraphic(mGraphicOverlay);
-        return new BarcodeGraphicTracker(mGraphicOverlay, graphic, mLoadedValueMemo, mTrackersCountListener, mTimer);
+        return new BarcodeGraphicTracker(this, graphic, mLoadedValueMemo, mTrackersCountListener, mMetrics, mInventorySession);
+    }
+
+    /**
+     * Sets the quality at which content of new barcodes is loaded.
+     */
+    void setQualityLevel(QualityLevel qualityLevel) {
+        mLoadedValueMemo.setQualityLevel(qualityLevel);
+    }
+
+    LoadedValueMemo getLoadedValueMemo() {
+        return mLoadedValueMemo;
+    }
+
+    GraphicOverlay<BarcodeGraphic> getGraphicOverlay() {
+        return mGraphicOverlay;
+    }
+
+    /**
+     * Moves graphics of the trackers to the given overlay, e.g. one of an activity recreated after
+     * a configuration change.  A tracker which has just added its graphic to the previous overlay
+     * moves it on its next update.  Pooled trackers are dropped, as their graphics still refer to
+     * the previous overlay.
+     */
+    void attachOverlay(GraphicOverlay<BarcodeGraphic> overlay) {
+        GraphicOverlay<BarcodeGraphic> previous = mGraphicOverlay;
+        mGraphicOverlay = overlay;
+        overlay.transferFrom(previous);
+        synchronized (mPool) {
+            mPool.clear();
+        }
+    }
+
+    private synchronized BarcodeGraphicTracker reattach(Barcode barcode) {
+        int bestIndex = -1;
+        float bestDistance = MAX_REATTACH_DISTANCE;
+        for (int i = 0; i < mRetainedTrackers.size(); i++) {
+            float distance = mRetainedTrackers.get(i).distanceTo(barcode);
+            if (distance <= bestDistance) {
+                bestIndex = i;
+                bestDistance = distance;
+            }
+        }
+        return bestIndex >= 0 ? mRetainedTrackers.remove(bestIndex) : null;
+    }
+
+    /**
+     * Keeps a done tracker for re-attachment.
+     */
+    synchronized void retain(BarcodeGraphicTracker tracker) {
+        tracker.mDoneFrame = mProcessedFramesCount;
+        tracker.mDoneMillis = SystemClock.uptimeMillis();
+        mRetainedTrackers.add(tracker);
+        scheduleExpiry();
+    }
+
+    /**
+     * Schedules expiry of the oldest retained tracker on the main thread, unless it is scheduled
+     * already.  Must be called with the lock held.
+     */
+    private void scheduleExpiry() {
+        if (!mExpiryScheduled && !mRetainedTrackers.isEmpty()) {
+            // trackers are retained in order, so the first one is the oldest
+            mHandler.postAtTime(mExpiryTask, mRetainedTrackers.get(0).mDoneMillis + RETAIN_DONE_MS);
+            mExpiryScheduled = true;
+        }
+    }
+
+    /**
+     * Called after the trackers got detections of a frame, to expire retained trackers.
+     */
+    void onFrameProcessed() {
+        synchronized (this) {
+            mProcessedFramesCount++;
+        }
+        expireRetainedTrackers();
+    }
+
+    /**
+     * Removes graphics of trackers which were not re-attached for {@link #RETAIN_DONE_FRAMES_COUNT}
+     * frames or {@link #RETAIN_DONE_MS} and recycles the trackers.
+     */
+    private void expireRetainedTrackers() {
+        List<BarcodeGraphicTracker> expiredTrackers = null;
+        synchronized (this) {
+            long nowMillis = SystemClock.uptimeMillis();
+            for (int i = mRetainedTrackers.size() - 1; i >= 0; i--) {
+                BarcodeGraphicTracker tracker = mRetainedTrackers.get(i);
+                if (mProcessedFramesCount - tracker.mDoneFrame > RETAIN_DONE_FRAMES_COUNT
+                        || nowMillis - tracker.mDoneMillis >= RETAIN_DONE_MS) {
+                    if (expiredTrackers == null) {
+                        expiredTrackers = new ArrayList<>();
+                    }
+                    expiredTrackers.add(mRetainedTrackers.remove(i));
+                }
+            }
+        }
+        if (expiredTrackers == null) {
+            return;
+        }
+        for (BarcodeGraphicTracker tracker : expiredTrackers) {
+            tracker.remove();
+            recycle(tracker);
+        }
+    }
+
+    /**
+     * Returns a tracker, whose graphic has been removed from the overlay, to the pool.
+     */
+    void recycle(BarcodeGraphicTracker tracker) {
+        tracker.reset();
+        synchronized (mPool) {
+            if (mPool.size() < MAX_POOLED_TRACKERS_COUNT) {
+                mPool.addLast(tracker);
+            }
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+package pl.ingensol.arqrscanner;
+
+import android.os.Process;
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+
+/**
+ * Loads content of codes expected to be scanned, e.g. at the locations a worker visits during
+ * a shift, before they come into view, so that they are presented without waiting for the
+ * network.<p>
+ *
+ * The manifest is a text file with a content url on each line; empty lines and lines starting
+ * with {@code #} are skipped.  It may be a local file or be downloaded, e.g. from the url held by
+ * a code with the {@link #MANIFEST_PAYLOAD_PREFIX}.  Images are fetched and decoded one at
+ * a time, no larger than needed to cover the target size of the {@link LoadedValueMemo}, and
+ * stored in it under the keys the trackers look up.<p>
+ *
+ * Prefetching runs on a background priority thread and waits while content of codes in view is
+ * being loaded, so it does not delay them.  It stops once the memo has no room left, rather than
+ * evicting content seen more recently.  Progress is published in {@link PipelineMetrics}.
+ */
+class ContentPrefetcher {
+
+    private static final String TAG = "ContentPrefetcher";
+
+    /**
+     * Prefix of code payloads holding the url of a prefetch manifest.
+     */
+    static final String MANIFEST_PAYLOAD_PREFIX = "arqr-prefetch:";
+
+    private final LoadedValueMemo mLoadedValueMemo;
+    private final PipelineMetrics mMetrics;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "content-prefetch");
+        }
+    });
+
+    ContentPrefetcher(LoadedValueMemo loadedValueMemo, PipelineMetrics metrics) {
+        mLoadedValueMemo = loadedValueMemo;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the manifest url held by the given code payload, or null if it holds none.
+     */
+    static URL parseManifestPayload(String payload) {
+        if (payload == null || !payload.startsWith(MANIFEST_PAYLOAD_PREFIX)) {
+            return null;
+        }
+        try {
+            return new URL(payload.substring(MANIFEST_PAYLOAD_PREFIX.length()).trim());
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Invalid manifest url in: " + payload, e);
+            return null;
+        }
+    }
+
+    /**
+     * Prefetches content listed in the manifest, after manifests given before.  Returns
+     * immediately.
+     */
+    void prefetch(final URL manifestUrl) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetchManifest(manifestUrl);
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Prefetching stopped");
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops prefetching.  Content prefetched so far stays loaded.
+     */
+    void stop() {
+        mExecutor.shutdownNow();
+    }
+
+    private void prefetchManifest(URL manifestUrl) throws InterruptedException {
+        List<URL> urls;
+        try {
+            urls = readManifest(manifestUrl);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read prefetch manifest: " + manifestUrl, e);
+            return;
+        }
+        Log.i(TAG, "Prefetching " + urls.size() + " items from: " + manifestUrl);
+
+        int failedCount = 0;
+        mMetrics.setPrefetchProgress(0, urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            mLoadedValueMemo.awaitIdle();
+            PresentedImageKey key = PresentedImageKey.forUrl(urls.get(i));
+            if (!mLoadedValueMemo.contains(key)) {
+                ByteBuffer encoded = fetch(key.getUrl());
+                // the network may have taken long, in the meantime codes in view came first
+                mLoadedValueMemo.awaitIdle();
+                Object value = encoded != null ? mLoadedValueMemo.decodeValue(key, encoded) : null;
+                if (value == null) {
+                    failedCount++;
+                } else if (!mLoadedValueMemo.putPrefetched(key, encoded, value)) {
+                    Log.w(TAG, "Prefetching stopped with no room left, after " + i + " items");
+                    return;
+                }
+            }
+            mMetrics.setPrefetchProgress(i + 1, urls.size());
+        }
+        Log.i(TAG, "Prefetched " + (urls.size() - failedCount) + " of " + urls.size() + " items");
+    }
+
+    /**
+     * Returns the content at the url, or null if it could not be fetched.
+     */
+    private static ByteBuffer fetch(URL url) {
+        TraceCompat.beginSection("content prefetch");
+        try {
+            return LoadedValueMemo.readFully(url);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not prefetch: " + url, e);
+            return null;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    private static List<URL> readManifest(URL manifestUrl) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(manifestUrl.openStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    urls.add(new URL(manifestUrl, line));
+                } catch (MalformedURLException e) {
+                    Log.w(TAG, "Invalid url in prefetch manifest: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return urls;
+    }
+
+}
@@ -0,0 +1,91 @@
+package pl.ingensol.arqrscanner;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+
+/**
+ * Detector standing in for one still being created on a background thread, so that the camera
+ * can be opened while the native detection library loads.  Frames arriving before the delegate
+ * is set are waited with only briefly and then skipped with no detections, so that the camera can
+ * always be stopped.  The first frame metric is recorded when the delegate detects its first
+ * frame after a camera start, not when a skipped frame arrives.
+ */
+class DeferredDetector<T> extends Detector<T> {
+
+    private static final long FRAME_WAIT_MS = 100;
+
+    private final PipelineMetrics mMetrics;
+    private final CountDownLatch mDelegateSet = new CountDownLatch(1);
+    private volatile Detector<T> mDelegate;
+    // guarded by this
+    private boolean mReleased;
+
+    DeferredDetector(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets the detector to delegate to.  Released at once if this detector has been released.
+     */
+    void setDelegate(Detector<T> delegate) {
+        synchronized (this) {
+            if (mReleased) {
+                delegate.release();
+                return;
+            }
+            mDelegate = delegate;
+        }
+        mDelegateSet.countDown();
+    }
+
+    /**
+     * Waits until the delegate is set, e.g. before replaying frames which must not be skipped.
+     */
+    void awaitDelegate() throws InterruptedException {
+        mDelegateSet.await();
+    }
+
+    @Override
+    public SparseArray<T> detect(Frame frame) {
+        Detector<T> delegate = mDelegate;
+        if (delegate == null) {
+            try {
+                mDelegateSet.await(FRAME_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delegate = mDelegate;
+            if (delegate == null) {
+                return new SparseArray<>();
+            }
+        }
+        SparseArray<T> detections = delegate.detect(frame);
+        mMetrics.onFrameDetectedByDetector();
+        return detections;
+    }
+
+    @Override
+    public boolean isOperational() {
+        Detector<T> delegate = mDelegate;
+        return delegate != null && delegate.isOperational();
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        synchronized (this) {
+            mReleased = true;
+            if (mDelegate != null) {
+                mDelegate.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package pl.ingensol.arqrscanner;
+
+import android.hardware.Camera;
+import android.support.v4.os.TraceCompat;
+
+import com.google.android.gms.vision.CameraSource;
+
+import java.lang.reflect.Field;
+
+/**
+ * Switches the camera to continuous focus while no barcode is tracked, to find codes in the
+ * scene, and fixes the focus while some are tracked, so that their graphics do not jump as the
+ * lens moves.
+ */
+class FocusModeController extends TrackersCountListener {
+
+    private volatile CameraSource mCameraSource;
+
+    void setCameraSource(CameraSource cameraSource) {
+        mCameraSource = cameraSource;
+    }
+
+    @Override
+    protected void onTrackersCountChanged(int size) {
+        if (size == 0) {
+            enableContinuousFocus();
+        } else if (size > 0) {
+            disableContinuousFocus();
+        }
+    }
+
+    private void enableContinuousFocus() {
+        Camera camera = getCamera(mCameraSource);
+        if (camera != null) {
+            TraceCompat.beginSection("camera parameters");
+            try {
+                Camera.Parameters parameters = camera.getParameters();
+                if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+                    parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+                    camera.setParameters(parameters);
+                }
+            } finally {
+                TraceCompat.endSection();
+            }
+        }
+    }
+
+    private void disableContinuousFocus() {
+        Camera camera = getCamera(mCameraSource);
+        if (camera != null) {
+            TraceCompat.beginSection("camera parameters");
+            try {
+                Camera.Parameters parameters = camera.getParameters();
+                if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_FIXED)) {
+                    parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_FIXED);
+                    camera.setParameters(parameters);
+                } else if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+                    parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+                    camera.setParameters(parameters);
+                }
+            } finally {
+                TraceCompat.endSection();
+            }
+        }
+    }
+
+    // from https://github.com/googlesamples/android-vision/issues/5
+    private static Camera getCamera(CameraSource cameraSource)  {
+        if (cameraSource == null) {
+            return null;
+        }
+        Field[] declaredFields = CameraSource.class.getDeclaredFields();
+
+        for (Field field : declaredFields) {
+            if (field.getType() == Camera.class) {
+                field.setAccessible(true);
+                try {
+                    Camera camera = (Camera) field.get(cameraSource);
+                    if (camera != null) {
+                        return camera;
+                    }
+                } catch (IllegalAccessException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+
+        return null;
+    }
+
+}
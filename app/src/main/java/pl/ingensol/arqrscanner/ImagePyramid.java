@@ -0,0 +1,78 @@
+package pl.ingensol.arqrscanner;
+
+import android.graphics.Bitmap;
+
+/**
+ * Presented image together with its downscaled copies, each half the size of the previous one.
+ * Distant barcodes are drawn from the level matching their on-screen size, which is cheaper than
+ * warping the full bitmap and avoids aliasing of heavily minified images.
+ */
+class ImagePyramid {
+
+    private static final int MIN_LEVEL_SIZE_PX = 32;
+    private static final int MAX_LEVELS_COUNT = 5;
+
+    private final Bitmap[] mLevels;
+
+    /**
+     * Builds the downscaled levels.  Each level is filtered from the previous one, so it costs
+     * about a third more memory and decoding time than the image alone.
+     */
+    ImagePyramid(Bitmap image) {
+        int levelsCount = 1;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        while (levelsCount < MAX_LEVELS_COUNT && Math.min(width, height) / 2 >= MIN_LEVEL_SIZE_PX) {
+            width /= 2;
+            height /= 2;
+            levelsCount++;
+        }
+
+        mLevels = new Bitmap[levelsCount];
+        mLevels[0] = image;
+        for (int i = 1; i < levelsCount; i++) {
+            Bitmap previous = mLevels[i - 1];
+            mLevels[i] = Bitmap.createScaledBitmap(previous, previous.getWidth() / 2, previous.getHeight() / 2, true);
+        }
+    }
+
+    int getWidth() {
+        return mLevels[0].getWidth();
+    }
+
+    int getHeight() {
+        return mLevels[0].getHeight();
+    }
+
+    Bitmap getLevel(int level) {
+        return mLevels[level];
+    }
+
+    /**
+     * Returns the memory used by the pixels of all levels.
+     */
+    int getByteCount() {
+        int byteCount = 0;
+        for (Bitmap level : mLevels) {
+            byteCount += level.getByteCount();
+        }
+        return byteCount;
+    }
+
+    /**
+     * Returns the smallest level which still has at least as many pixels as the area it will be
+     * drawn on.
+     *
+     * @param projectedArea on-screen area of the image in pixels
+     */
+    int selectLevel(float projectedArea) {
+        for (int level = mLevels.length - 1; level > 0; level--) {
+            Bitmap bitmap = mLevels[level];
+            if ((float) bitmap.getWidth() * bitmap.getHeight() >= projectedArea) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+}
@@ -3,21 +3,258 @@ package pl.ingensol.arqrscanner;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
+import android.support.v4.os.TraceCompat;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import pl.ingensol.arqrscanner.content.ByteBufferInputStream;
+import pl.ingensol.arqrscanner.content.ContentBundle;
+import pl.ingensol.arqrscanner.content.ContentBundleStore;
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+import pl.ingensol.arqrscanner.quality.QualityLevel;
+
+/**
+ * Content presented over codes, by key, kept in memory in two tiers.  Decoded values are kept in
+ * an LRU cache, as a bitmap takes 10-20 times more memory than the image it was decoded from.
+ * Downloaded images are also kept compressed in another LRU cache with its own, smaller byte
+ * budget, which still holds many more codes.  When a code whose decoded value was evicted comes
+ * back into view, it is decoded again on a background thread instead of being downloaded, so that
+ * many more codes stay warm on low memory devices.  Bundled content is mapped, so it is not kept
+ * compressed.  Text cards are rendered on the same background thread, so that neither holds up
+ * the detector.<p>
+ *
+ * Both tiers are on the Java heap - bitmap pixels and direct buffers are allocated there on
+ * Android too - so their budgets are parts of the heap limit, which together take 3/16 of it.
+ */
 class LoadedValueMemo {
 
-    private Map<PresentedObjectKey, Object> mLoadedValues = new HashMap<>();
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+    private static final long REFILL_THREAD_KEEP_ALIVE_MS = 10000;
+    // parts of the heap limit the tiers may take
+    private static final int DECODED_HEAP_FRACTION = 8;
+    private static final int ENCODED_HEAP_FRACTION = 16;
+
+    private final LruCache<PresentedObjectKey, Object> mLoadedValues;
+    private final LruCache<PresentedObjectKey, ByteBuffer> mEncodedImages;
+    // keys whose values are being decoded from mEncodedImages, or whose text cards are being rendered
+    private final Set<PresentedObjectKey> mRefillingKeys = new HashSet<>();
+    private final ExecutorService mRefillExecutor = new ThreadPoolExecutor(0, 1,
+            REFILL_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "content-refill");
+                }
+            });
+    // used only by the refill thread
+    private final TextCardRenderer mTextCardRenderer = new TextCardRenderer();
+    private final PipelineMetrics mMetrics;
+    private final ContentBundleStore mContentBundles;
+    // set by the quality governor
+    private volatile QualityLevel mQualityLevel = QualityLevel.FULL;
+    private volatile int mTargetSize;
+    // on-demand loads in progress or waiting for another one, which prefetching yields to
+    private final Object mIdleLock = new Object();
+    private int mOnDemandLoadsCount;
+
+    /**
+     * @param contentBundles bundles checked for content before the network, or null
+     */
+    LoadedValueMemo(PipelineMetrics metrics, ContentBundleStore contentBundles) {
+        mMetrics = metrics;
+        mContentBundles = contentBundles;
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        mLoadedValues = new LruCache<PresentedObjectKey, Object>((int) Math.min(Integer.MAX_VALUE, maxMemory / DECODED_HEAP_FRACTION)) {
+            @Override
+            protected int sizeOf(PresentedObjectKey key, Object value) {
+                return byteCountOf(value);
+            }
+        };
+        mEncodedImages = new LruCache<PresentedObjectKey, ByteBuffer>((int) Math.min(Integer.MAX_VALUE, maxMemory / ENCODED_HEAP_FRACTION)) {
+            @Override
+            protected int sizeOf(PresentedObjectKey key, ByteBuffer value) {
+                return value.capacity();
+            }
+        };
+    }
+
+    /**
+     * Sets the quality at which images are loaded from now on.  Loaded values are kept.
+     */
+    void setQualityLevel(QualityLevel qualityLevel) {
+        mQualityLevel = qualityLevel;
+    }
+
+    QualityLevel getQualityLevel() {
+        return mQualityLevel;
+    }
+
+    /**
+     * Sets the size, in pixels, of the longer side of the area content is presented on.  Images
+     * are decoded no larger than needed to cover it.  0, the default, decodes them at full size.
+     */
+    void setTargetSize(int targetSize) {
+        mTargetSize = targetSize;
+    }
 
-    synchronized Object getLoadedValue(PresentedObjectKey key) {
+    /**
+     * Returns the value presented for the key, loading it if needed.  Returns null if there is
+     * none, or if it is being decoded or rendered in the background, see {@link #isRefilling}.
+     */
+    Object getLoadedValue(PresentedObjectKey key) {
+        Object value = mLoadedValues.get(key);
+        if (value != null || refill(key)) {
+            return value;
+        }
+        synchronized (mIdleLock) {
+            mOnDemandLoadsCount++;
+        }
+        try {
+            return load(key);
+        } finally {
+            synchronized (mIdleLock) {
+                if (--mOnDemandLoadsCount == 0) {
+                    mIdleLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the value of the key is being decoded from its compressed image, or its text
+     * card rendered, in the background, so it will be available shortly.
+     */
+    boolean isRefilling(PresentedObjectKey key) {
+        synchronized (mRefillingKeys) {
+            return mRefillingKeys.contains(key);
+        }
+    }
+
+    /**
+     * Returns whether a value, decoded or compressed, is kept for the key.
+     */
+    boolean contains(PresentedObjectKey key) {
+        return mLoadedValues.get(key) != null || mEncodedImages.get(key) != null;
+    }
+
+    /**
+     * Stores an image loaded in the background, unless one was loaded on demand in the meantime.
+     * Neither tier evicts values to make room for it, as those were needed more recently.
+     *
+     * @param value the image decoded by {@link #decodeValue}
+     * @return false if there was no room left for it
+     */
+    synchronized boolean putPrefetched(PresentedObjectKey key, ByteBuffer encoded, Object value) {
+        if (mLoadedValues.get(key) != null) {
+            return true;
+        }
+        if (mEncodedImages.size() + encoded.capacity() > mEncodedImages.maxSize()) {
+            return false;
+        }
+        mEncodedImages.put(key, encoded);
+        if (mLoadedValues.size() + byteCountOf(value) <= mLoadedValues.maxSize()) {
+            mLoadedValues.put(key, value);
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until no value is being loaded on demand and quality allows downloading images, so
+     * that background loads do not compete with those of codes in view.
+     */
+    void awaitIdle() throws InterruptedException {
+        synchronized (mIdleLock) {
+            while (mOnDemandLoadsCount > 0 || !mQualityLevel.isImageDownloads()) {
+                // quality changes are not notified
+                mIdleLock.wait(IDLE_CHECK_INTERVAL_MS);
+            }
+        }
+    }
+
+    /**
+     * Starts decoding the compressed image of the key in the background, unless already started.
+     *
+     * @return false if there is no compressed image of the key
+     */
+    private boolean refill(final PresentedObjectKey key) {
+        final ByteBuffer encoded;
+        synchronized (mRefillingKeys) {
+            if (mRefillingKeys.contains(key)) {
+                return true;
+            }
+            encoded = mEncodedImages.get(key);
+            if (encoded == null) {
+                return false;
+            }
+            mRefillingKeys.add(key);
+        }
+        mRefillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = PipelineMetrics.start();
+                Object value = decodeValue(key, encoded);
+                if (value != null) {
+                    mLoadedValues.put(key, value);
+                } else {
+                    // downloaded again next time
+                    mEncodedImages.remove(key);
+                }
+                synchronized (mRefillingKeys) {
+                    mRefillingKeys.remove(key);
+                }
+                mMetrics.recordSince(PipelineMetrics.Stage.CONTENT_REFILL, startNanos);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Starts rendering the text card of the key in the background, unless already started.
+     */
+    private void render(final PresentedTextKey key) {
+        synchronized (mRefillingKeys) {
+            if (!mRefillingKeys.add(key)) {
+                return;
+            }
+        }
+        mRefillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = PipelineMetrics.start();
+                mLoadedValues.put(key, new ImagePyramid(mTextCardRenderer.render(key.getText())));
+                synchronized (mRefillingKeys) {
+                    mRefillingKeys.remove(key);
+                }
+                mMetrics.recordSince(PipelineMetrics.Stage.CONTENT_LOAD, startNanos);
+            }
+        });
+    }
+
+    private synchronized Object load(PresentedObjectKey key) {
         Object value = mLoadedValues.get(key);
         if (value == null) {
+            long startNanos = PipelineMetrics.start();
             value = loadValue(key);
+            if (value == null && key instanceof PresentedTextKey) {
+                // recorded once rendered
+                render((PresentedTextKey) key);
+                return null;
+            }
+            mMetrics.recordSince(PipelineMetrics.Stage.CONTENT_LOAD, startNanos);
         }
         if (value != null) {
             mLoadedValues.put(key, value);
@@ -26,29 +263,172 @@ class LoadedValueMemo {
     }
 
     private Object loadValue(PresentedObjectKey key) {
+        Object bundled = loadBundled(key);
+        if (bundled != null) {
+            return bundled;
+        }
         if (key instanceof PresentedImageKey) {
+            if (!mQualityLevel.isImageDownloads()) {
+                // shown as text until quality allows downloading
+                return null;
+            }
             try {
                 PresentedImageKey presentedImage = (PresentedImageKey) key;
-                return new DownloadImageTask().execute(presentedImage.getUrl()).get();
+                ByteBuffer encoded = new DownloadImageTask().execute(presentedImage.getUrl()).get();
+                if (encoded != null) {
+                    Object value = decodeValue(key, encoded);
+                    if (value != null) {
+                        mEncodedImages.put(key, encoded);
+                        return value;
+                    }
+                }
             } catch (Exception e) {
                 Log.e("barcode", "Image downloading execution exception", e);
             }
         }
+        // text cards are rendered in the background
         return null;
     }
 
-    private static class DownloadImageTask extends AsyncTask<URL, Void, Bitmap> {
+    /**
+     * Decodes the image stored in the content bundle under the url or the text of the key, so
+     * that a text payload may be presented as an image as well.  Returns null if there is none.
+     */
+    private Object loadBundled(PresentedObjectKey key) {
+        ContentBundle bundle = mContentBundles != null ? mContentBundles.getBundle() : null;
+        if (bundle == null) {
+            return null;
+        }
+        String bundleKey;
+        if (key instanceof PresentedImageKey) {
+            bundleKey = ((PresentedImageKey) key).getUrl().toString();
+        } else if (key instanceof PresentedTextKey) {
+            bundleKey = ((PresentedTextKey) key).getText();
+        } else {
+            return null;
+        }
+
+        try {
+            ByteBuffer content = bundle.find(bundleKey);
+            return content != null ? decodeValue(key, content) : null;
+        } catch (IOException e) {
+            Log.e("barcode", "Could not read content bundle", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the value of the key from its image: an {@link AnimatedContent} if the key is of
+     * an animation the platform can play, otherwise an {@link ImagePyramid} of the still image, or
+     * its first frame.  Returns null if the image is invalid.  May be called from any thread.
+     */
+    Object decodeValue(PresentedObjectKey key, ByteBuffer encoded) {
+        if (key instanceof PresentedAnimationKey) {
+            AnimatedContent animation = AnimatedContent.decode(encoded, mTargetSize);
+            if (animation != null) {
+                return animation;
+            }
+        }
+        Bitmap bitmap = decode(encoded);
+        return bitmap != null ? new ImagePyramid(bitmap) : null;
+    }
+
+    /**
+     * Decodes the image, read by the decoder straight from the buffer, at the current quality and
+     * no larger than the target size.  Returns null if the image is invalid.  May be called from
+     * any thread.
+     */
+    Bitmap decode(ByteBuffer encoded) {
+        TraceCompat.beginSection("content decode");
+        try {
+            int sampleSize = mQualityLevel.getBitmapSampleSize();
+            int targetSize = mTargetSize;
+            if (targetSize > 0) {
+                BitmapFactory.Options bounds = new BitmapFactory.Options();
+                bounds.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(new ByteBufferInputStream(encoded.duplicate()), null, bounds);
+                while (Math.max(bounds.outWidth, bounds.outHeight) / (sampleSize * 2) >= targetSize) {
+                    sampleSize *= 2;
+                }
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            if (sampleSize > 1) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+            Bitmap bitmap = BitmapFactory.decodeStream(new ByteBufferInputStream(encoded.duplicate()), null, options);
+            if (bitmap == null) {
+                Log.e("barcode", "Invalid image of " + encoded.remaining() + " bytes");
+            }
+            return bitmap;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    private static int byteCountOf(Object value) {
+        if (value instanceof ImagePyramid) {
+            return ((ImagePyramid) value).getByteCount();
+        } else if (value instanceof AnimatedContent) {
+            return ((AnimatedContent) value).getByteCount();
+        }
+        return 1;
+    }
+
+    private static class DownloadImageTask extends AsyncTask<URL, Void, ByteBuffer> {
+
         @Override
-        protected Bitmap doInBackground(URL... urls) {
+        protected ByteBuffer doInBackground(URL... urls) {
             URL url = urls[0];
             Log.i("barcode", "Loading image: " + url);
+            TraceCompat.beginSection("content fetch");
             try {
-                return BitmapFactory.decodeStream(url.openStream());
+                return readFully(url);
             } catch (IOException e) {
                 Log.e("barcode", "Invalid image stream", e);
                 return null;
+            } finally {
+                TraceCompat.endSection();
+            }
+        }
+
+    }
+
+    /**
+     * Reads the content at the url into an array sized by its content length, if known, and
+     * returns it wrapped, so that it is not copied again.  An array grown for content of unknown
+     * length is trimmed only if much of it is left unused.
+     */
+    static ByteBuffer readFully(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        InputStream input = connection.getInputStream();
+        try {
+            int contentLength = connection.getContentLength();
+            byte[] buffer = new byte[contentLength > 0 ? contentLength : 8192];
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    // the end is usually right after the content length
+                    int next = input.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    buffer[length++] = (byte) next;
+                }
+                int read = input.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    break;
+                }
+                length += read;
+            }
+            if (buffer.length - length > length / 4) {
+                buffer = Arrays.copyOf(buffer, length);
             }
+            return ByteBuffer.wrap(buffer, 0, length);
+        } finally {
+            input.close();
         }
     }
 
-}
\ No newline at end of file
+}
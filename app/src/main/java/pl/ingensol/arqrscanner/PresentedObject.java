@@ -3,6 +3,7 @@ package pl.ingensol.arqrscanner;
 import com.google.android.gms.vision.barcode.Barcode;
 
 import java.net.URL;
+import java.util.Locale;
 
 class PresentedObject {
 
@@ -41,6 +42,13 @@ class PresentedImageKey implements PresentedObjectKey {
         this.url = url;
     }
 
+    /**
+     * Returns the key of the content at the url, an animation if the url names one.
+     */
+    static PresentedImageKey forUrl(URL url) {
+        return PresentedAnimationKey.isAnimation(url) ? new PresentedAnimationKey(url) : new PresentedImageKey(url);
+    }
+
     public URL getUrl() {
         return url;
     }
@@ -63,6 +71,30 @@ class PresentedImageKey implements PresentedObjectKey {
 
 }
 
+/**
+ * Key of an image expected to be animated, e.g. a GIF instruction, loaded as
+ * {@link AnimatedContent}.  Falls back to the still image if it cannot be animated.
+ */
+class PresentedAnimationKey extends PresentedImageKey {
+
+    private static final String[] ANIMATION_EXTENSIONS = {".gif", ".webp"};
+
+    public PresentedAnimationKey(URL url) {
+        super(url);
+    }
+
+    static boolean isAnimation(URL url) {
+        String path = url.getPath().toLowerCase(Locale.US);
+        for (String extension : ANIMATION_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
+
 class PresentedTextKey implements PresentedObjectKey {
 
     private String text;
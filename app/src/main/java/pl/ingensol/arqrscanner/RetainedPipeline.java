@@ -0,0 +1,265 @@
+package pl.ingensol.arqrscanner;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.google.android.gms.vision.CameraSource;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+
+import pl.ingensol.arqrscanner.bulk.BulkDecoder;
+import pl.ingensol.arqrscanner.camera.AdaptiveResolutionDetector;
+import pl.ingensol.arqrscanner.camera.GraphicOverlay;
+import pl.ingensol.arqrscanner.content.ContentBundleStore;
+import pl.ingensol.arqrscanner.inventory.InventoryBatch;
+import pl.ingensol.arqrscanner.inventory.InventoryBatchWriter;
+import pl.ingensol.arqrscanner.inventory.InventorySession;
+import pl.ingensol.arqrscanner.journal.JournalUploader;
+import pl.ingensol.arqrscanner.journal.ScanJournal;
+import pl.ingensol.arqrscanner.journal.ScanRecord;
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+import pl.ingensol.arqrscanner.quality.PacedProcessor;
+import pl.ingensol.arqrscanner.quality.QualityLevel;
+
+/**
+ * Parts of the scanning pipeline which outlive {@link BarcodeCaptureActivity} when it is
+ * recreated by a configuration change, e.g. a rotation or a multi-window resize: the camera
+ * source with the detector, the trackers with their loaded content, the content bundles, the
+ * metrics, the inventory session with its journal and bulk decoding.  The activity hands it over
+ * as its non-configuration instance, so that the recreated one only reattaches the preview, the
+ * overlay and the inventory count.<p>
+ *
+ * Nothing here may refer to the activity or its views, except the inventory count view, which is
+ * replaced by the recreated activity.
+ */
+class RetainedPipeline implements InventorySession.Listener {
+
+    private static final String TAG = "RetainedPipeline";
+
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    private final FocusModeController mFocusModeController = new FocusModeController();
+    private CameraSource mCameraSource;
+    private BarcodeTrackerFactory mBarcodeFactory;
+    private AdaptiveResolutionDetector mResolutionDetector;
+    private PacedProcessor<Barcode> mPacedProcessor;
+    private QualityLevel mQualityLevel = QualityLevel.FULL;
+    private ContentBundleStore mContentBundles;
+    private ContentPrefetcher mContentPrefetcher;
+    private InventorySession mInventorySession;
+    private ScanJournal mScanJournal;
+    private JournalUploader mJournalUploader;
+    private InventoryBatchWriter mInventoryBatchWriter;
+    private volatile TextView mInventoryCountView;
+    private Thread mBulkDecoding;
+
+    PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    FocusModeController getFocusModeController() {
+        return mFocusModeController;
+    }
+
+    /**
+     * Starts an inventory session, whose accepted codes are appended to the journal and whose
+     * closed batches are written by the batch writer.
+     *
+     * @param journalUploader uploader of the journal, or null
+     */
+    void startInventory(ScanJournal scanJournal, JournalUploader journalUploader, InventoryBatchWriter batchWriter) {
+        mScanJournal = scanJournal;
+        mJournalUploader = journalUploader;
+        mInventoryBatchWriter = batchWriter;
+        mInventorySession = new InventorySession(this);
+    }
+
+    InventorySession getInventorySession() {
+        return mInventorySession;
+    }
+
+    void setContentBundles(ContentBundleStore contentBundles) {
+        mContentBundles = contentBundles;
+    }
+
+    /**
+     * Returns the bundles of offline content, checked by the trackers before the network.
+     */
+    ContentBundleStore getContentBundles() {
+        return mContentBundles;
+    }
+
+    void setCamera(CameraSource cameraSource, BarcodeTrackerFactory barcodeFactory,
+                   AdaptiveResolutionDetector resolutionDetector, PacedProcessor<Barcode> pacedProcessor) {
+        mCameraSource = cameraSource;
+        mBarcodeFactory = barcodeFactory;
+        mResolutionDetector = resolutionDetector;
+        mPacedProcessor = pacedProcessor;
+        mFocusModeController.setCameraSource(cameraSource);
+        applyQualityLevel(mQualityLevel);
+    }
+
+    /**
+     * Applies the quality level to the detector, the trackers and content loading.  Kept for the
+     * camera created later, e.g. once the camera permission is granted.
+     */
+    void applyQualityLevel(QualityLevel qualityLevel) {
+        mQualityLevel = qualityLevel;
+        if (hasCamera()) {
+            mResolutionDetector.setMinDownscale(qualityLevel.getMinDetectionDownscale());
+            mPacedProcessor.setMinIntervalMillis(qualityLevel.getMinDetectionIntervalMillis());
+            mBarcodeFactory.setQualityLevel(qualityLevel);
+        }
+    }
+
+    /**
+     * Prefetches content listed in the manifest for the trackers, after manifests given before.
+     * Requires the camera pipeline.
+     */
+    void prefetch(URL manifestUrl) {
+        if (mContentPrefetcher == null) {
+            mContentPrefetcher = new ContentPrefetcher(mBarcodeFactory.getLoadedValueMemo(), mMetrics);
+        }
+        mContentPrefetcher.prefetch(manifestUrl);
+    }
+
+    CameraSource getCameraSource() {
+        return mCameraSource;
+    }
+
+    /**
+     * Returns whether the camera pipeline is running, i.e. there is anything worth retaining.
+     */
+    boolean hasCamera() {
+        return mCameraSource != null && mBarcodeFactory != null;
+    }
+
+    /**
+     * Moves the graphics of tracked barcodes to the overlay of a recreated activity, if the camera
+     * pipeline is running.
+     */
+    void attachOverlay(GraphicOverlay<BarcodeGraphic> overlay) {
+        if (mBarcodeFactory != null) {
+            mBarcodeFactory.attachOverlay(overlay);
+        }
+    }
+
+    /**
+     * Decodes images and videos from the given file or directory on all cores on a background
+     * thread, writing results as JSON lines, and reports throughput in a toast when done.  Does
+     * nothing if decoding was started before, e.g. by the activity before it was recreated.
+     */
+    void startBulkDecoding(final Context applicationContext, final File input, final File output) {
+        if (mBulkDecoding != null) {
+            return;
+        }
+        final BulkDecoder decoder = new BulkDecoder(new BulkDecoder.DetectorFactory() {
+            @Override
+            public Detector<Barcode> create() {
+                return BarcodeCaptureActivity.createBarcodeDetector(applicationContext);
+            }
+        }, Runtime.getRuntime().availableProcessors());
+
+        mBulkDecoding = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+                    try {
+                        result = "Bulk decoding of " + input + " into " + output + ": " + decoder.decode(input, writer);
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    Log.e(TAG, "Bulk decoding of " + input + " failed", e);
+                    result = "Bulk decoding failed: " + e.getMessage();
+                }
+                Log.i(TAG, result);
+                final String message = result;
+                // shown by the application, as the activity may have been recreated meanwhile
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(applicationContext, message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "bulk");
+        mBulkDecoding.start();
+    }
+
+    /**
+     * Returns whether bulk decoding was started, so that it is not started again.
+     */
+    boolean hasBulkDecoding() {
+        return mBulkDecoding != null;
+    }
+
+    /**
+     * Shows the running inventory count in the given view, replacing the previous one.
+     */
+    void attachInventoryCountView(TextView countView) {
+        mInventoryCountView = countView;
+        showInventoryCount(countView, mInventorySession.getCodesCount(), mInventorySession.getCurrentBatchNumber());
+    }
+
+    /**
+     * Stops bulk decoding, prefetching and uploading and closes the journal and the batch writer,
+     * once the pipeline is no longer retained.  The camera source is released by the preview.
+     */
+    void release() {
+        mInventoryCountView = null;
+        if (mBulkDecoding != null) {
+            mBulkDecoding.interrupt();
+        }
+        if (mContentPrefetcher != null) {
+            mContentPrefetcher.stop();
+        }
+        if (mJournalUploader != null) {
+            mJournalUploader.stop();
+        }
+        if (mScanJournal != null) {
+            mScanJournal.close();
+        }
+        if (mInventoryBatchWriter != null) {
+            mInventoryBatchWriter.close();
+        }
+    }
+
+    @Override
+    public void onCodeAccepted(Barcode barcode, long acceptedAtMillis, final int codesCount, final int batchNumber) {
+        mScanJournal.append(ScanRecord.of(barcode, acceptedAtMillis));
+        final TextView countView = mInventoryCountView;
+        if (countView != null) {
+            countView.post(new Runnable() {
+                @Override
+                public void run() {
+                    showInventoryCount(countView, codesCount, batchNumber);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onBatchClosed(InventoryBatch batch) {
+        Log.i(TAG, "Inventory batch " + batch.getNumber() + " closed with " + batch.size() + " codes");
+        mInventoryBatchWriter.write(batch);
+    }
+
+    private static void showInventoryCount(TextView countView, int codesCount, int batchNumber) {
+        countView.setText(countView.getContext().getString(R.string.inventory_count, codesCount, batchNumber));
+    }
+
+}
@@ -0,0 +1,65 @@
+package pl.ingensol.arqrscanner;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Processor of the single-shot scan mode, used in place of the multi-processor, so that no
+ * trackers, graphics or content are created.  Confirms the first value read in the given number
+ * of consecutive frames and then ignores further detections.  Called on the detector thread only.
+ */
+class SingleShotProcessor implements Detector.Processor<Barcode> {
+
+    interface Listener {
+        /**
+         * Called once, on the detector thread.
+         */
+        void onConfirmed(Barcode barcode);
+    }
+
+    private final int mConfirmationFramesCount;
+    private final Listener mListener;
+    private Map<String, Integer> mConsecutiveCounts = new HashMap<>();
+    private Map<String, Integer> mNextConsecutiveCounts = new HashMap<>();
+    private boolean mConfirmed;
+
+    SingleShotProcessor(int confirmationFramesCount, Listener listener) {
+        mConfirmationFramesCount = confirmationFramesCount;
+        mListener = listener;
+    }
+
+    @Override
+    public void receiveDetections(Detector.Detections<Barcode> detections) {
+        if (mConfirmed) {
+            return;
+        }
+        SparseArray<Barcode> barcodes = detections.getDetectedItems();
+        for (int i = 0; i < barcodes.size(); i++) {
+            Barcode barcode = barcodes.valueAt(i);
+            Integer previousCount = mConsecutiveCounts.get(barcode.rawValue);
+            int count = previousCount != null ? previousCount + 1 : 1;
+            if (count >= mConfirmationFramesCount) {
+                mConfirmed = true;
+                mListener.onConfirmed(barcode);
+                return;
+            }
+            mNextConsecutiveCounts.put(barcode.rawValue, count);
+        }
+
+        // values missing from this frame start counting again
+        Map<String, Integer> counts = mConsecutiveCounts;
+        mConsecutiveCounts = mNextConsecutiveCounts;
+        mNextConsecutiveCounts = counts;
+        mNextConsecutiveCounts.clear();
+    }
+
+    @Override
+    public void release() {
+    }
+
+}
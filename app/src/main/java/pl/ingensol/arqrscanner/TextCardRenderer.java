@@ -0,0 +1,77 @@
+package pl.ingensol.arqrscanner;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+
+/**
+ * Renders text payloads into bitmap cards, so that they can be presented the same way as loaded
+ * images.  Text is wrapped to give the card roughly the square shape of a QR code, and cards
+ * larger than {@link #MAX_CARD_SIZE_PX} are scaled down.
+ */
+class TextCardRenderer {
+
+    private static final int FONT_HEIGHT = 36;
+    private static final int PADDING_PX = 12;
+    private static final int MAX_CARD_SIZE_PX = 512;
+    private static final float CARD_ASPECT_RATIO = 1f;
+
+    private final TextPaint mTextPaint;
+
+    TextCardRenderer() {
+        mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setColor(Color.BLACK);
+        mTextPaint.setTextSize(FONT_HEIGHT);
+    }
+
+    /**
+     * Lays out and rasterizes the card.  Can be called from any thread.
+     */
+    Bitmap render(String text) {
+        StaticLayout layout = layoutFittingAspectRatio(text);
+        int width = layout.getWidth() + 2 * PADDING_PX;
+        int height = layout.getHeight() + 2 * PADDING_PX;
+        float scale = Math.min(1f, (float) MAX_CARD_SIZE_PX / Math.max(width, height));
+
+        // cards are opaque, so there is no need to pay for the alpha channel
+        Bitmap bitmap = Bitmap.createBitmap(
+                Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)),
+                Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.WHITE);
+        canvas.scale(scale, scale);
+        canvas.translate(PADDING_PX, PADDING_PX);
+        layout.draw(canvas);
+        return bitmap;
+    }
+
+    /**
+     * Finds the narrowest wrapping width for which the card is not taller than the required
+     * aspect ratio allows.  The height of the layout only decreases with its width, so it is
+     * a binary search.
+     */
+    private StaticLayout layoutFittingAspectRatio(String text) {
+        int low = FONT_HEIGHT;
+        int high = Math.max(low, (int) Math.ceil(mTextPaint.measureText(text)));
+        while (low < high) {
+            int middle = (low + high) / 2;
+            StaticLayout layout = layout(text, middle);
+            if (layout.getHeight() + 2 * PADDING_PX > (middle + 2 * PADDING_PX) * CARD_ASPECT_RATIO) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return layout(text, low);
+    }
+
+    private StaticLayout layout(String text, int width) {
+        return new StaticLayout(text, mTextPaint, width, Layout.Alignment.ALIGN_CENTER, 1f, 0f, false);
+    }
+
+}
@@ -0,0 +1,32 @@
+package pl.ingensol.arqrscanner;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * Processor passing detections to the multi-processor and then letting
+ * {@link BarcodeTrackerFactory} count the frame, so that done trackers which were not
+ * re-attached are removed after a number of frames rather than after a fixed delay.
+ */
+class TrackerContinuityProcessor implements Detector.Processor<Barcode> {
+
+    private final Detector.Processor<Barcode> mDelegate;
+    private final BarcodeTrackerFactory mFactory;
+
+    TrackerContinuityProcessor(Detector.Processor<Barcode> delegate, BarcodeTrackerFactory factory) {
+        mDelegate = delegate;
+        mFactory = factory;
+    }
+
+    @Override
+    public void receiveDetections(Detector.Detections<Barcode> detections) {
+        mDelegate.receiveDetections(detections);
+        mFactory.onFrameProcessed();
+    }
+
+    @Override
+    public void release() {
+        mDelegate.release();
+    }
+
+}
@@ -1,40 +1,50 @@
 package pl.ingensol.arqrscanner;
 
+import android.os.Handler;
+import android.os.Looper;
+
 import com.google.android.gms.vision.Tracker;
 import com.google.android.gms.vision.barcode.Barcode;
 
 import java.util.HashSet;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 abstract class TrackersCountListener {
 
     private static final int HANDLE_TRACKER_DONE_DELAY_MS = 2000;
 
     private Set<Tracker<Barcode>> mEnabledTrackers = new HashSet<>();
-    private Timer mTimer;
-
-
-    TrackersCountListener(Timer timer) {
-        mTimer = timer;
-    }
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mNoTrackersTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TrackersCountListener.this) {
+                if (mEnabledTrackers.isEmpty()) {
+                    onTrackersCountChanged(0);
+                }
+            }
+        }
+    };
 
     synchronized void onTrackerEnabled(Tracker<Barcode> tracker) {
+        mHandler.removeCallbacks(mNoTrackersTask);
         mEnabledTrackers.add(tracker);
         onTrackersCountChanged(mEnabledTrackers.size());
     }
 
-    void onTrackerDone(final Tracker<Barcode> tracker) {
-        mTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                synchronized (TrackersCountListener.this) {
-                    mEnabledTrackers.remove(tracker);
-                    onTrackersCountChanged(mEnabledTrackers.size());
-                }
-            }
-        }, HANDLE_TRACKER_DONE_DELAY_MS);
+    /**
+     * Called when the tracker is gone for good, i.e. after it was not re-attached to its barcode.
+     * That no trackers are left is reported only after a delay, so that a barcode lost for a
+     * moment does not switch the focus mode back and forth.
+     */
+    synchronized void onTrackerDone(Tracker<Barcode> tracker) {
+        mEnabledTrackers.remove(tracker);
+        if (mEnabledTrackers.isEmpty()) {
+            mHandler.removeCallbacks(mNoTrackersTask);
+            mHandler.postDelayed(mNoTrackersTask, HANDLE_TRACKER_DONE_DELAY_MS);
+        } else {
+            onTrackersCountChanged(mEnabledTrackers.size());
+        }
     }
 
     protected abstract void onTrackersCountChanged(int size);
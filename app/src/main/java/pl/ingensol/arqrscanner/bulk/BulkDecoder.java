@@ -0,0 +1,378 @@
+package pl.ingensol.arqrscanner.bulk;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pl.ingensol.arqrscanner.json.JsonStrings;
+
+/**
+ * Decodes barcodes from image and video files, without the camera, preview or overlay, e.g. for
+ * photos and recordings of pallets taken by other devices.<p>
+ *
+ * Frames are detected on a fixed pool of worker threads, each with its own detector, so large
+ * folders keep every core busy.  Images are decoded by the workers themselves.  Video frames,
+ * taken every {@link #VIDEO_FRAME_INTERVAL_MS}, are extracted by a few separate threads, as
+ * seeking is mostly waiting for the codec.  The number of frames waiting for a worker is bounded,
+ * which bounds memory used by their bitmaps, and a video frame is extracted only once it may wait.
+ * Images are decoded subsampled to at most {@link #MAX_IMAGE_SIZE_PX} on the longer side, about
+ * 3 MP, which keeps codes in photos readable while a 12 MP photo takes 12 rather than 48 MB.
+ * Larger video frames are scaled down to the same size.<p>
+ *
+ * Every barcode found is written as a JSON line as soon as it is detected, with the source file,
+ * the frame time for videos, the format, the raw value and the corner points.
+ */
+public class BulkDecoder {
+
+    private static final String TAG = "BulkDecoder";
+    private static final long VIDEO_FRAME_INTERVAL_MS = 200;
+    private static final int MAX_IMAGE_SIZE_PX = 2048;
+    private static final long WORKERS_STOP_TIMEOUT_MS = 5000;
+    private static final List<String> IMAGE_EXTENSIONS = Arrays.asList("jpg", "jpeg", "png", "webp", "bmp");
+    private static final List<String> VIDEO_EXTENSIONS = Arrays.asList("mp4", "3gp", "mkv", "webm", "mov");
+
+    public interface DetectorFactory {
+        /**
+         * Creates a detector to be used by a single worker thread.
+         */
+        Detector<Barcode> create();
+    }
+
+    private final DetectorFactory mDetectorFactory;
+    private final int mThreadsCount;
+
+    private final List<Detector<Barcode>> mDetectors = new ArrayList<>();
+    private final ThreadLocal<Detector<Barcode>> mWorkerDetector = new ThreadLocal<Detector<Barcode>>() {
+        @Override
+        protected Detector<Barcode> initialValue() {
+            Detector<Barcode> detector = mDetectorFactory.create();
+            synchronized (mDetectors) {
+                mDetectors.add(detector);
+            }
+            return detector;
+        }
+    };
+
+    private ExecutorService mWorkers;
+    private Semaphore mWaitingFrames;
+    private Writer mResults;
+    private final AtomicInteger mFramesCount = new AtomicInteger();
+    private final AtomicInteger mBarcodesCount = new AtomicInteger();
+    private final AtomicInteger mFailedFilesCount = new AtomicInteger();
+    private final AtomicLong mDetectionNanos = new AtomicLong();
+
+    public BulkDecoder(DetectorFactory detectorFactory, int threadsCount) {
+        mDetectorFactory = detectorFactory;
+        mThreadsCount = threadsCount;
+    }
+
+    /**
+     * Decodes all images and videos in the given file or directory tree and waits until done.
+     * Not reentrant.
+     *
+     * @param results where JSON lines describing found barcodes are written
+     */
+    public Report decode(File input, Writer results) throws InterruptedException, IOException {
+        mResults = results;
+        mWorkers = Executors.newFixedThreadPool(mThreadsCount, namedThreads("bulk-detect-"));
+        mWaitingFrames = new Semaphore(mThreadsCount * 2);
+        ExecutorService videoExtractors = Executors.newFixedThreadPool(Math.max(1, mThreadsCount / 4), namedThreads("bulk-video-"));
+        long startNanos = System.nanoTime();
+        try {
+            List<File> files = new ArrayList<>();
+            collectFiles(input, files);
+            for (final File file : files) {
+                String extension = extensionOf(file);
+                if (IMAGE_EXTENSIONS.contains(extension)) {
+                    submitImage(file);
+                } else if (VIDEO_EXTENSIONS.contains(extension)) {
+                    videoExtractors.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            extractVideoFrames(file);
+                        }
+                    });
+                }
+            }
+            // extractors submit frames to workers, so they are finished first
+            videoExtractors.shutdown();
+            videoExtractors.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            mWorkers.shutdown();
+            mWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            videoExtractors.shutdownNow();
+            mWorkers.shutdownNow();
+            releaseDetectors();
+        }
+        synchronized (mResults) {
+            mResults.flush();
+        }
+        return new Report(mFramesCount.get(), mBarcodesCount.get(), mFailedFilesCount.get(),
+                System.nanoTime() - startNanos, mDetectionNanos.get());
+    }
+
+    /**
+     * Releases the detectors once the workers have stopped, as a worker may still be inside a
+     * detection when decoding is interrupted.  Detectors of workers which do not stop in time are
+     * left unreleased rather than released under them.
+     */
+    private void releaseDetectors() {
+        boolean interrupted = Thread.interrupted();
+        boolean terminated;
+        try {
+            terminated = mWorkers.awaitTermination(WORKERS_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+            terminated = false;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (!terminated) {
+            Log.w(TAG, "Workers did not stop, their detectors are not released");
+            return;
+        }
+        synchronized (mDetectors) {
+            for (Detector<Barcode> detector : mDetectors) {
+                detector.release();
+            }
+            mDetectors.clear();
+        }
+    }
+
+    private void submitImage(final File file) throws InterruptedException {
+        mWaitingFrames.acquire();
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Bitmap bitmap = decodeImage(file);
+                    if (bitmap == null) {
+                        Log.w(TAG, "Could not decode image: " + file);
+                        mFailedFilesCount.incrementAndGet();
+                        return;
+                    }
+                    detect(file, -1, bitmap);
+                } finally {
+                    mWaitingFrames.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the image subsampled by the smallest power of two which brings it within
+     * {@link #MAX_IMAGE_SIZE_PX}, or returns null if it is invalid.
+     */
+    private static Bitmap decodeImage(File file) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (Math.max(bounds.outWidth, bounds.outHeight) / sampleSize > MAX_IMAGE_SIZE_PX) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    private void extractVideoFrames(final File file) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getPath());
+            long durationMillis = Long.parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            for (long timeMillis = 0; timeMillis < durationMillis; timeMillis += VIDEO_FRAME_INTERVAL_MS) {
+                // acquired first, so that an extractor holds no frame beyond the bound
+                mWaitingFrames.acquire();
+                final Bitmap bitmap;
+                try {
+                    bitmap = scaleDown(retriever.getFrameAtTime(timeMillis * 1000, MediaMetadataRetriever.OPTION_CLOSEST));
+                } catch (RuntimeException e) {
+                    mWaitingFrames.release();
+                    throw e;
+                }
+                if (bitmap == null) {
+                    mWaitingFrames.release();
+                    continue;
+                }
+                final long frameTimeMillis = timeMillis;
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            detect(file, frameTimeMillis, bitmap);
+                        } finally {
+                            mWaitingFrames.release();
+                        }
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            // thrown by the retriever for unsupported files
+            Log.w(TAG, "Could not read video: " + file, e);
+            mFailedFilesCount.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            retriever.release();
+        }
+    }
+
+    /**
+     * Scales the frame down to {@link #MAX_IMAGE_SIZE_PX} on the longer side, if larger, as video
+     * frames are extracted at full resolution.  The original frame is recycled.
+     */
+    private static Bitmap scaleDown(Bitmap frame) {
+        if (frame == null) {
+            return null;
+        }
+        int maxSize = Math.max(frame.getWidth(), frame.getHeight());
+        if (maxSize <= MAX_IMAGE_SIZE_PX) {
+            return frame;
+        }
+        float scale = (float) MAX_IMAGE_SIZE_PX / maxSize;
+        Bitmap scaled = Bitmap.createScaledBitmap(frame, Math.max(1, Math.round(frame.getWidth() * scale)),
+                Math.max(1, Math.round(frame.getHeight() * scale)), true);
+        if (scaled != frame) {
+            frame.recycle();
+        }
+        return scaled;
+    }
+
+    private void detect(File file, long frameTimeMillis, Bitmap bitmap) {
+        long startNanos = System.nanoTime();
+        SparseArray<Barcode> barcodes = mWorkerDetector.get().detect(new Frame.Builder().setBitmap(bitmap).build());
+        mDetectionNanos.addAndGet(System.nanoTime() - startNanos);
+        bitmap.recycle();
+        mFramesCount.incrementAndGet();
+
+        for (int i = 0; i < barcodes.size(); i++) {
+            writeResult(file, frameTimeMillis, barcodes.valueAt(i));
+        }
+        mBarcodesCount.addAndGet(barcodes.size());
+    }
+
+    private void writeResult(File file, long frameTimeMillis, Barcode barcode) {
+        StringBuilder line = new StringBuilder(256);
+        line.append("{\"source\":");
+        JsonStrings.append(line, file.getPath());
+        if (frameTimeMillis >= 0) {
+            line.append(",\"timeMs\":").append(frameTimeMillis);
+        }
+        line.append(",\"format\":").append(barcode.format).append(",\"value\":");
+        JsonStrings.append(line, barcode.rawValue);
+        line.append(",\"corners\":[");
+        Point[] cornerPoints = barcode.cornerPoints != null ? barcode.cornerPoints : new Point[0];
+        for (int i = 0; i < cornerPoints.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(cornerPoints[i].x).append(',').append(cornerPoints[i].y);
+        }
+        line.append("]}\n");
+
+        synchronized (mResults) {
+            try {
+                mResults.write(line.toString());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write result for: " + file, e);
+            }
+        }
+    }
+
+    private static void collectFiles(File file, List<File> files) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            files.add(file);
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            collectFiles(child, files);
+        }
+    }
+
+    private static String extensionOf(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.US) : "";
+    }
+
+    private static ThreadFactory namedThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, prefix + mCount.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Counts and throughput of a single run.
+     */
+    public static class Report {
+
+        private final int mFramesCount;
+        private final int mBarcodesCount;
+        private final int mFailedFilesCount;
+        private final long mDurationNanos;
+        private final long mDetectionNanos;
+
+        Report(int framesCount, int barcodesCount, int failedFilesCount, long durationNanos, long detectionNanos) {
+            mFramesCount = framesCount;
+            mBarcodesCount = barcodesCount;
+            mFailedFilesCount = failedFilesCount;
+            mDurationNanos = durationNanos;
+            mDetectionNanos = detectionNanos;
+        }
+
+        public int getFramesCount() {
+            return mFramesCount;
+        }
+
+        public int getBarcodesCount() {
+            return mBarcodesCount;
+        }
+
+        public double getFramesPerSecond() {
+            return mDurationNanos > 0 ? mFramesCount * 1e9 / mDurationNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "frames=%d barcodes=%d failed files=%d fps=%.1f mean detection ms=%.1f",
+                    mFramesCount, mBarcodesCount, mFailedFilesCount, getFramesPerSecond(),
+                    mFramesCount > 0 ? mDetectionNanos / 1e6 / mFramesCount : 0);
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+package pl.ingensol.arqrscanner.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+
+/**
+ * Detector which passes camera frames to the wrapped detector at a resolution matching the size
+ * of the codes in view.  Detection cost grows with the number of pixels, so while codes are large
+ * frames are downscaled by 2 or 4 before detection, and while codes are small, or none are
+ * decoded for a while, the resolution is raised again.  Positions of detected barcodes are scaled
+ * back to camera frame coordinates, so the rest of the pipeline does not notice.<p>
+ *
+ * Only the detector input changes, the camera preview keeps its size, so switching causes no
+ * glitch on screen.  Switches need the code size to cross thresholds set apart by more than the
+ * switching factor and are at least {@link #MIN_FRAMES_BETWEEN_SWITCHES} apart, so that the
+ * resolution does not oscillate.<p>
+ *
+ * Frames are passed unchanged while the downscale is 1.  Bitmap frames are downscaled too, from
+ * the luminance the frame converts them to.  Must be called from one thread at a time, as the
+ * camera source and the replay driver do.
+ */
+public class AdaptiveResolutionDetector extends Detector<Barcode> {
+
+    private static final String TAG = "AdaptiveResolution";
+    private static final int MAX_DOWNSCALE = 4;
+    /**
+     * Size of the smallest code, in detector pixels, below which resolution is raised.
+     */
+    private static final int MIN_CODE_PIXELS = 48;
+    /**
+     * Size of the smallest code, in detector pixels after lowering resolution, at which it is
+     * lowered.  Twice the minimum, so that resolution is not raised again right after lowering.
+     */
+    private static final int COMFORTABLE_CODE_PIXELS = 2 * MIN_CODE_PIXELS;
+    private static final int LARGE_CODE_FRAMES_COUNT = 10;
+    private static final int MISSED_FRAMES_COUNT = 30;
+    private static final int MIN_FRAMES_BETWEEN_SWITCHES = 15;
+
+    private final Detector<Barcode> mDelegate;
+    private final PipelineMetrics mMetrics;
+
+    private int mDownscale = 1;
+    private int mReportedDownscale;
+    // lower bound set by the quality governor
+    private volatile int mMinDownscale = 1;
+    private int mLargeCodeFramesCount;
+    private int mMissedFramesCount;
+    private int mFramesSinceSwitch;
+
+    // reused for every frame
+    private byte[] mRows;
+    private byte[] mScaledLuminance;
+    private ByteBuffer mScaledImage;
+
+    public AdaptiveResolutionDetector(Detector<Barcode> delegate, PipelineMetrics metrics) {
+        mDelegate = delegate;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets the lowest downscale to use, regardless of the size of codes, e.g. to save power.
+     */
+    public void setMinDownscale(int minDownscale) {
+        mMinDownscale = minDownscale;
+    }
+
+    @Override
+    public SparseArray<Barcode> detect(Frame frame) {
+        int downscale = Math.max(mDownscale, mMinDownscale);
+        if (downscale != mReportedDownscale) {
+            mReportedDownscale = downscale;
+            mMetrics.setDetectionDownscale(downscale);
+        }
+        ByteBuffer luminance = downscale > 1 ? frame.getGrayscaleImageData() : null;
+        if (luminance == null) {
+            SparseArray<Barcode> barcodes = mDelegate.detect(frame);
+            adapt(barcodes, 1);
+            return barcodes;
+        }
+
+        SparseArray<Barcode> barcodes = mDelegate.detect(downscale(frame, luminance, downscale));
+        for (int i = 0; i < barcodes.size(); i++) {
+            Point[] cornerPoints = barcodes.valueAt(i).cornerPoints;
+            if (cornerPoints != null) {
+                for (Point point : cornerPoints) {
+                    point.x *= downscale;
+                    point.y *= downscale;
+                }
+            }
+        }
+        adapt(barcodes, downscale);
+        return barcodes;
+    }
+
+    /**
+     * Averages luminance over blocks of the given size into a frame with neutral chroma - the
+     * detector looks at luminance only.  Luminance is read straight from the array backing the
+     * frame, if any, or else copied a band of block rows at a time, and the downscaled plane is
+     * put into the frame buffer in one go.
+     */
+    private Frame downscale(Frame frame, ByteBuffer luminance, int downscale) {
+        Frame.Metadata metadata = frame.getMetadata();
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        // NV21 needs even dimensions
+        int scaledWidth = (width / downscale) & ~1;
+        int scaledHeight = (height / downscale) & ~1;
+
+        int scaledPixels = scaledWidth * scaledHeight;
+        int bufferSize = scaledPixels * 3 / 2;
+        if (mScaledImage == null || mScaledImage.capacity() != bufferSize) {
+            mScaledImage = ByteBuffer.allocateDirect(bufferSize);
+            byte[] chroma = new byte[bufferSize - scaledPixels];
+            Arrays.fill(chroma, (byte) 0x80);
+            mScaledImage.position(scaledPixels);
+            mScaledImage.put(chroma);
+            mScaledLuminance = new byte[scaledPixels];
+        }
+
+        ByteBuffer source = null;
+        byte[] rows;
+        int bandStep;
+        int bandOffset;
+        if (luminance.hasArray()) {
+            rows = luminance.array();
+            bandStep = downscale * width;
+            bandOffset = luminance.arrayOffset();
+        } else {
+            source = luminance.duplicate();
+            int bandSize = downscale * width;
+            if (mRows == null || mRows.length < bandSize) {
+                mRows = new byte[bandSize];
+            }
+            rows = mRows;
+            bandStep = 0;
+            bandOffset = 0;
+        }
+
+        byte[] scaled = mScaledLuminance;
+        int blockPixels = downscale * downscale;
+        for (int y = 0; y < scaledHeight; y++) {
+            if (source != null) {
+                source.position(y * downscale * width);
+                source.get(rows, 0, downscale * width);
+            }
+            int bandStart = bandOffset + y * bandStep;
+            int scaledRowStart = y * scaledWidth;
+            for (int x = 0; x < scaledWidth; x++) {
+                int blockStart = bandStart + x * downscale;
+                int sum = 0;
+                for (int dy = 0; dy < downscale; dy++) {
+                    int offset = blockStart + dy * width;
+                    for (int dx = 0; dx < downscale; dx++) {
+                        sum += rows[offset + dx] & 0xff;
+                    }
+                }
+                scaled[scaledRowStart + x] = (byte) ((sum + blockPixels / 2) / blockPixels);
+            }
+        }
+        mScaledImage.position(0);
+        mScaledImage.put(scaled, 0, scaledPixels);
+        mScaledImage.rewind();
+
+        return new Frame.Builder()
+                .setImageData(mScaledImage, scaledWidth, scaledHeight, ImageFormat.NV21)
+                .setId(metadata.getId())
+                .setTimestampMillis(metadata.getTimestampMillis())
+                .setRotation(metadata.getRotation())
+                .build();
+    }
+
+    private void adapt(SparseArray<Barcode> barcodes, int downscale) {
+        mFramesSinceSwitch++;
+        if (barcodes.size() == 0) {
+            mLargeCodeFramesCount = 0;
+            mMissedFramesCount++;
+            if (mMissedFramesCount >= MISSED_FRAMES_COUNT && mDownscale > 1) {
+                switchTo(mDownscale / 2, "no codes decoded");
+            }
+            return;
+        }
+        mMissedFramesCount = 0;
+
+        int smallestCodePixels = Integer.MAX_VALUE;
+        for (int i = 0; i < barcodes.size(); i++) {
+            Rect box = barcodes.valueAt(i).getBoundingBox();
+            smallestCodePixels = Math.min(smallestCodePixels, Math.min(box.width(), box.height()));
+        }
+
+        if (smallestCodePixels / downscale < MIN_CODE_PIXELS && mDownscale > 1) {
+            mLargeCodeFramesCount = 0;
+            switchTo(mDownscale / 2, "small codes");
+        } else if (smallestCodePixels / (downscale * 2) >= COMFORTABLE_CODE_PIXELS && mDownscale < MAX_DOWNSCALE) {
+            mLargeCodeFramesCount++;
+            if (mLargeCodeFramesCount >= LARGE_CODE_FRAMES_COUNT) {
+                switchTo(mDownscale * 2, "large codes");
+            }
+        } else {
+            mLargeCodeFramesCount = 0;
+        }
+    }
+
+    private void switchTo(int downscale, String reason) {
+        if (mFramesSinceSwitch < MIN_FRAMES_BETWEEN_SWITCHES) {
+            return;
+        }
+        Log.d(TAG, "Detection downscale " + mDownscale + " -> " + downscale + ": " + reason);
+        mDownscale = downscale;
+        mFramesSinceSwitch = 0;
+        mLargeCodeFramesCount = 0;
+        mMissedFramesCount = 0;
+    }
+
+    @Override
+    public boolean isOperational() {
+        return mDelegate.isOperational();
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        mDelegate.release();
+    }
+
+}
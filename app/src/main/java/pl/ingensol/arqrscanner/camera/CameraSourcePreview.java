@@ -19,6 +19,7 @@ import android.Manifest;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.support.annotation.RequiresPermission;
+import android.support.v4.os.TraceCompat;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -29,7 +30,16 @@ import com.google.android.gms.common.images.Size;
 import com.google.android.gms.vision.CameraSource;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+
+/**
+ * Preview of the camera source, which opens the camera on a background thread as soon as both
+ * the start is requested and the surface is available, so that the UI thread is not blocked.
+ */
 public class CameraSourcePreview extends ViewGroup {
     private static final String TAG = "CameraSourcePreview";
 
@@ -40,6 +50,18 @@ public class CameraSourcePreview extends ViewGroup {
     private CameraSource mCameraSource;
 
     private GraphicOverlay mOverlay;
+    private PipelineMetrics mMetrics;
+
+    // the camera is opened on this thread, and starts invalidated by stop() are skipped
+    private final ExecutorService mStarter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "camera-start");
+        }
+    });
+    private final Object mStartLock = new Object();
+    // guarded by mStartLock
+    private int mStartGeneration;
 
     public CameraSourcePreview(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -52,8 +74,15 @@ public class CameraSourcePreview extends ViewGroup {
         addView(mSurfaceView);
     }
 
+    /**
+     * Sets metrics to record camera opening times in.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     @RequiresPermission(Manifest.permission.CAMERA)
-    public void start(CameraSource cameraSource) throws IOException, SecurityException {
+    public void start(CameraSource cameraSource) throws SecurityException {
         if (cameraSource == null) {
             stop();
         }
@@ -67,45 +96,127 @@ public class CameraSourcePreview extends ViewGroup {
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
-    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws IOException, SecurityException {
+    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws SecurityException {
         mOverlay = overlay;
         start(cameraSource);
     }
 
+    /**
+     * Stops the camera, waiting for it to finish opening if it is being opened.
+     */
     public void stop() {
-        if (mCameraSource != null) {
-            mCameraSource.stop();
+        synchronized (mStartLock) {
+            mStartGeneration++;
+            if (mCameraSource != null) {
+                mCameraSource.stop();
+            }
         }
     }
 
+    /**
+     * Releases the camera source.  The preview cannot be started again afterwards.
+     */
     public void release() {
-        if (mCameraSource != null) {
-            mCameraSource.release();
+        synchronized (mStartLock) {
+            mStartGeneration++;
+            if (mCameraSource != null) {
+                mCameraSource.release();
+                mCameraSource = null;
+            }
+        }
+        mStarter.shutdown();
+    }
+
+    /**
+     * Stops the camera start thread, keeping the camera source for another preview, e.g. one of
+     * the activity recreated after a configuration change.  The preview cannot be started again
+     * afterwards.
+     */
+    public void detach() {
+        synchronized (mStartLock) {
+            mStartGeneration++;
             mCameraSource = null;
         }
+        mStarter.shutdown();
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
-    private void startIfReady() throws IOException, SecurityException {
+    private void startIfReady() throws SecurityException {
         if (mStartRequested && mSurfaceAvailable) {
-            mCameraSource.start(mSurfaceView.getHolder());
-            if (mOverlay != null) {
-                Size size = mCameraSource.getPreviewSize();
-                int min = Math.min(size.getWidth(), size.getHeight());
-                int max = Math.max(size.getWidth(), size.getHeight());
-                if (isPortraitMode()) {
-                    // Swap width and height sizes when in portrait, since it will be rotated by
-                    // 90 degrees
-                    mOverlay.setCameraInfo(min, max, mCameraSource.getCameraFacing());
-                } else {
-                    mOverlay.setCameraInfo(max, min, mCameraSource.getCameraFacing());
-                }
-                mOverlay.clear();
+            final CameraSource cameraSource = mCameraSource;
+            final SurfaceHolder surfaceHolder = mSurfaceView.getHolder();
+            final int generation;
+            synchronized (mStartLock) {
+                generation = ++mStartGeneration;
             }
+            mStarter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (openCamera(cameraSource, surfaceHolder, generation)) {
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onCameraStarted(cameraSource);
+                            }
+                        });
+                    }
+                }
+            });
             mStartRequested = false;
         }
     }
 
+    /**
+     * Called on the starter thread.  Returns whether the camera was started.
+     */
+    @SuppressWarnings("MissingPermission")
+    private boolean openCamera(CameraSource cameraSource, SurfaceHolder surfaceHolder, int generation) {
+        synchronized (mStartLock) {
+            if (generation != mStartGeneration) {
+                // stopped in the meantime
+                return false;
+            }
+            long startNanos = PipelineMetrics.start();
+            TraceCompat.beginSection("camera open");
+            try {
+                cameraSource.start(surfaceHolder);
+            } catch (SecurityException se) {
+                Log.e(TAG, "Do not have permission to start the camera", se);
+                return false;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start camera source.", e);
+                return false;
+            } finally {
+                TraceCompat.endSection();
+            }
+            if (mMetrics != null) {
+                mMetrics.recordSince(PipelineMetrics.Stage.CAMERA_OPEN, startNanos);
+            }
+            return true;
+        }
+    }
+
+    private void onCameraStarted(CameraSource cameraSource) {
+        if (cameraSource != mCameraSource) {
+            return;
+        }
+        if (mOverlay != null) {
+            Size size = cameraSource.getPreviewSize();
+            int min = Math.min(size.getWidth(), size.getHeight());
+            int max = Math.max(size.getWidth(), size.getHeight());
+            if (isPortraitMode()) {
+                // Swap width and height sizes when in portrait, since it will be rotated by
+                // 90 degrees
+                mOverlay.setCameraInfo(min, max, cameraSource.getCameraFacing());
+            } else {
+                mOverlay.setCameraInfo(max, min, cameraSource.getCameraFacing());
+            }
+            mOverlay.clearOnCameraStart();
+        }
+        // the preview size is known only now
+        requestLayout();
+    }
+
     private class SurfaceCallback implements SurfaceHolder.Callback {
         @Override
         public void surfaceCreated(SurfaceHolder surface) {
@@ -114,8 +225,6 @@ public class CameraSourcePreview extends ViewGroup {
                 startIfReady();
             } catch (SecurityException se) {
                 Log.e(TAG,"Do not have permission to start the camera", se);
-            } catch (IOException e) {
-                Log.e(TAG, "Could not start camera source.", e);
             }
         }
 
@@ -185,8 +294,6 @@ public class CameraSourcePreview extends ViewGroup {
             startIfReady();
         } catch (SecurityException se) {
             Log.e(TAG,"Do not have permission to start the camera", se);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not start camera source.", e);
         }
     }
 
@@ -17,15 +17,23 @@ package pl.ingensol.arqrscanner.camera;
 
 import android.content.Context;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
 import android.util.AttributeSet;
 import android.view.View;
 
 import com.google.android.gms.vision.CameraSource;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
@@ -44,16 +52,68 @@ import java.util.Vector;
  * <li>{@link Graphic#translateX(float)} and {@link Graphic#translateY(float)} adjust the coordinate
  * from the preview's coordinate system to the view coordinate system.</li>
  * </ol>
+ *
+ * State changes made by detector threads are published as immutable {@link Scene} snapshots.
+ * The UI thread draws the most recently published snapshot without taking any lock, so detection
+ * is never blocked by rendering.  The device rotation, which changes continuously, is published
+ * separately by its single writer, the sensor thread, as one volatile value, without locking or
+ * allocating.  Each frame reads it once, so all graphics in the frame use the same rotation.<p>
+ *
+ * Graphics are drawn ordered by their on-screen size, so that the closest (largest) ones are
+ * drawn on top, and those with bounds outside of the view are skipped.  Bounds of the graphics
+ * drawn in the last frame are indexed in a {@link SpatialGrid} for {@link #findGraphicAt}.
  */
 public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
+    // guards writers only - drawing reads mScene without locking
     private final Object mLock = new Object();
-    private int mPreviewWidth;
+    private final Set<T> mGraphics = new LinkedHashSet<>();
+    private long mNextSequence;
+    // set by transferFrom, so that the moved graphics survive the next camera start
+    private boolean mTransferred;
+    private volatile Scene<T> mScene = new Scene<>(
+            Collections.<T>emptyList(), 0, 0, CameraSource.CAMERA_FACING_BACK);
+    // written by the sensor thread only
+    private volatile float mRotationDegrees;
     private float mWidthScaleFactor = 1.0f;
-    private int mPreviewHeight;
     private float mHeightScaleFactor = 1.0f;
-    private int mFacing = CameraSource.CAMERA_FACING_BACK;
-    private Matrix mRotationMatrix = new Matrix();
-    private List<T> mGraphics = new ArrayList<>();
+
+    // used only by the UI thread
+    private final List<T> mDrawOrder = new ArrayList<>();
+    private final SpatialGrid<T> mHitGrid = new SpatialGrid<>();
+    private final RectF mViewBounds = new RectF();
+    private float mDrawRotationDegrees;
+    private PipelineMetrics mMetrics;
+
+    // redraws are limited to one per interval, when set by the quality governor
+    private volatile long mMinDrawIntervalMillis;
+    private final AtomicBoolean mDrawScheduled = new AtomicBoolean();
+    private volatile long mLastDrawMillis;
+
+    /**
+     * Immutable snapshot of everything needed to draw the overlay.  A new instance is published
+     * on every change, so none of its fields is ever mutated after publication.
+     */
+    private static class Scene<T> {
+        final List<T> graphics;
+        final int previewWidth;
+        final int previewHeight;
+        final int facing;
+
+        Scene(List<T> graphics, int previewWidth, int previewHeight, int facing) {
+            this.graphics = graphics;
+            this.previewWidth = previewWidth;
+            this.previewHeight = previewHeight;
+            this.facing = facing;
+        }
+
+        Scene<T> withGraphics(List<T> graphics) {
+            return new Scene<>(graphics, previewWidth, previewHeight, facing);
+        }
+
+        Scene<T> withCameraInfo(int previewWidth, int previewHeight, int facing) {
+            return new Scene<>(graphics, previewWidth, previewHeight, facing);
+        }
+    }
 
     /**
      * Base class for a custom graphics object to be rendered within the graphic overlay.  Subclass
@@ -61,7 +121,14 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
      * graphics element.  Add instances to the overlay using {@link GraphicOverlay#add(Graphic)}.
      */
     public static abstract class Graphic {
+        // size bucket used for z-ordering, so that similarly sized graphics do not swap order
+        // on every frame because of detection jitter
+        private static final float DEPTH_BUCKET_PX = 16;
+
         private GraphicOverlay mOverlay;
+        private final RectF mBounds = new RectF();
+        private int mDepth;
+        private long mSequence;
 
         public Graphic(GraphicOverlay overlay) {
             mOverlay = overlay;
@@ -81,6 +148,19 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
          */
         public abstract void draw(Canvas canvas);
 
+        /**
+         * Computes bounds, in view coordinates, of what {@link #draw(Canvas)} would draw.  Used
+         * for culling, z-ordering and hit-testing.  The default implementation covers the whole
+         * overlay.
+         *
+         * @param bounds rectangle to store the bounds in
+         * @return false if the graphic has nothing to draw
+         */
+        public boolean computeBounds(RectF bounds) {
+            bounds.set(0, 0, mOverlay.getWidth(), mOverlay.getHeight());
+            return true;
+        }
+
         /**
          * Adjusts a horizontal value of the supplied value from the preview scale to the view
          * scale.
@@ -101,7 +181,7 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
          * system.
          */
         public float translateX(float x) {
-            if (mOverlay.mFacing == CameraSource.CAMERA_FACING_FRONT) {
+            if (mOverlay.mScene.facing == CameraSource.CAMERA_FACING_FRONT) {
                 return mOverlay.getWidth() - scaleX(x);
             } else {
                 return scaleX(x);
@@ -116,12 +196,24 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
             return scaleY(y);
         }
 
-        public Matrix getRotationMatrix() {
-            return mOverlay.mRotationMatrix;
+        /**
+         * Returns the device rotation in degrees of the frame being drawn, as reported to
+         * {@link GraphicOverlay#setRotationDegrees(float)}.  Must be called from the UI thread.
+         */
+        public float getRotationDegrees() {
+            return mOverlay.mDrawRotationDegrees;
         }
 
         public void postInvalidate() {
-            mOverlay.postInvalidate();
+            mOverlay.scheduleDraw();
+        }
+
+        /**
+         * Requests a redraw after the given delay, e.g. when the next frame of an animation is
+         * due.  While the draw interval is limited, redraws requested meanwhile wait for it.
+         */
+        public void postInvalidateDelayed(long delayMillis) {
+            mOverlay.scheduleDraw(delayMillis);
         }
     }
 
@@ -129,25 +221,82 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
         super(context, attrs);
     }
 
+    /**
+     * Sets metrics to record drawing times in.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Limits redraws to one per the given interval, or lifts the limit if 0.
+     */
+    public void setMinDrawIntervalMillis(long minDrawIntervalMillis) {
+        mMinDrawIntervalMillis = minDrawIntervalMillis;
+    }
+
     /**
      * Removes all graphics from the overlay.
      */
     public void clear() {
         synchronized (mLock) {
             mGraphics.clear();
+            publishGraphics();
+        }
+        scheduleDraw();
+    }
+
+    /**
+     * Removes graphics left over from a previous camera run, unless they were moved here by
+     * {@link #transferFrom} since the last camera start, as their trackers are still running.
+     */
+    public void clearOnCameraStart() {
+        synchronized (mLock) {
+            if (mTransferred) {
+                mTransferred = false;
+                return;
+            }
         }
-        postInvalidate();
+        clear();
     }
 
     /**
-     * Adds a graphic to the overlay.
+     * Adds a graphic to the overlay.  Adding a graphic which is already present only triggers
+     * a redraw.
      */
     public void add(T graphic) {
         synchronized (mLock) {
-            mGraphics.remove(graphic);
-            mGraphics.add(graphic);
+            if (mGraphics.add(graphic)) {
+                ((Graphic) graphic).mOverlay = this;
+                ((Graphic) graphic).mSequence = mNextSequence++;
+                publishGraphics();
+            }
+        }
+        scheduleDraw();
+    }
+
+    /**
+     * Moves all graphics from an overlay being replaced, e.g. by one of an activity recreated
+     * after a configuration change, and makes them draw in this one.
+     */
+    public void transferFrom(GraphicOverlay<T> previous) {
+        List<T> graphics;
+        synchronized (previous.mLock) {
+            graphics = new ArrayList<>(previous.mGraphics);
+            previous.mGraphics.clear();
+            previous.publishGraphics();
+        }
+        synchronized (mLock) {
+            for (T graphic : graphics) {
+                if (mGraphics.add(graphic)) {
+                    ((Graphic) graphic).mOverlay = this;
+                    ((Graphic) graphic).mSequence = mNextSequence++;
+                }
+            }
+            mTransferred = true;
+            publishGraphics();
         }
-        postInvalidate();
+        scheduleDraw();
     }
 
     /**
@@ -155,19 +304,36 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
      */
     public void remove(T graphic) {
         synchronized (mLock) {
-            mGraphics.remove(graphic);
+            if (mGraphics.remove(graphic)) {
+                publishGraphics();
+            }
         }
-        postInvalidate();
+        scheduleDraw();
     }
 
     /**
-     * Returns a copy (as a list) of the set of all active graphics.
+     * Returns the current snapshot of all active graphics.  The returned list is immutable and
+     * is not affected by later changes to the overlay.
      * @return list of all active graphics.
      */
     public List<T> getGraphics() {
-        synchronized (mLock) {
-            return new Vector(mGraphics);
+        return mScene.graphics;
+    }
+
+    /**
+     * Returns the topmost graphic drawn in the last frame at the given point or, if there is no
+     * graphic at the point, the one closest to it.  Must be called from the UI thread.
+     *
+     * @param x horizontal position in view coordinates
+     * @param y vertical position in view coordinates
+     * @return the found graphic or null if nothing was drawn
+     */
+    public T findGraphicAt(float x, float y) {
+        T graphic = mHitGrid.findTopmostAt(x, y);
+        if (graphic == null) {
+            graphic = mHitGrid.findNearest(x, y);
         }
+        return graphic;
     }
 
     /**
@@ -190,35 +356,102 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
      */
     public void setCameraInfo(int previewWidth, int previewHeight, int facing) {
         synchronized (mLock) {
-            mPreviewWidth = previewWidth;
-            mPreviewHeight = previewHeight;
-            mFacing = facing;
+            mScene = mScene.withCameraInfo(previewWidth, previewHeight, facing);
         }
-        postInvalidate();
+        scheduleDraw();
     }
 
-    public void onOrientationChanged(int orientation) {
-        synchronized (mLock) {
-            this.mRotationMatrix.setRotate(orientation);
+    /**
+     * Sets the device rotation, clockwise from its natural orientation, used for graphics drawn
+     * from now on.  Does not request a redraw, graphics are redrawn as barcodes are tracked.
+     * Must be called from one thread only, e.g. the one of {@link OrientationSensor}.
+     */
+    public void setRotationDegrees(float rotationDegrees) {
+        mRotationDegrees = rotationDegrees;
+    }
+
+    /**
+     * Requests a redraw, at most one per the minimum draw interval.  May be called from any thread.
+     */
+    private void scheduleDraw() {
+        scheduleDraw(0);
+    }
+
+    /**
+     * Requests a redraw after the given delay, at most one per the minimum draw interval.  May be
+     * called from any thread.
+     */
+    private void scheduleDraw(long delayMillis) {
+        long minDrawIntervalMillis = mMinDrawIntervalMillis;
+        if (minDrawIntervalMillis == 0 && delayMillis == 0) {
+            postInvalidate();
+        } else if (mDrawScheduled.compareAndSet(false, true)) {
+            long intervalDelayMillis = mLastDrawMillis + minDrawIntervalMillis - SystemClock.uptimeMillis();
+            postInvalidateDelayed(Math.max(delayMillis, Math.max(0, intervalDelayMillis)));
         }
     }
 
+    // must be called with mLock held
+    private void publishGraphics() {
+        mScene = mScene.withGraphics(Collections.unmodifiableList(new ArrayList<>(mGraphics)));
+    }
+
     /**
      * Draws the overlay with its associated graphic objects.
      */
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        mDrawScheduled.set(false);
+        mLastDrawMillis = SystemClock.uptimeMillis();
 
-        synchronized (mLock) {
-            if ((mPreviewWidth != 0) && (mPreviewHeight != 0)) {
-                mWidthScaleFactor = (float) canvas.getWidth() / (float) mPreviewWidth;
-                mHeightScaleFactor = (float) canvas.getHeight() / (float) mPreviewHeight;
+        long startNanos = PipelineMetrics.start();
+        TraceCompat.beginSection("overlay draw");
+        try {
+            Scene<T> scene = mScene;
+            mDrawRotationDegrees = mRotationDegrees;
+            if ((scene.previewWidth != 0) && (scene.previewHeight != 0)) {
+                mWidthScaleFactor = (float) canvas.getWidth() / (float) scene.previewWidth;
+                mHeightScaleFactor = (float) canvas.getHeight() / (float) scene.previewHeight;
+            }
+
+            mViewBounds.set(0, 0, canvas.getWidth(), canvas.getHeight());
+            mDrawOrder.clear();
+            for (T graphic : scene.graphics) {
+                RectF bounds = ((Graphic) graphic).mBounds;
+                if (graphic.computeBounds(bounds) && RectF.intersects(bounds, mViewBounds)) {
+                    ((Graphic) graphic).mDepth = (int) (Math.sqrt(bounds.width() * bounds.height()) / Graphic.DEPTH_BUCKET_PX);
+                    mDrawOrder.add(graphic);
+                }
             }
+            Collections.sort(mDrawOrder, DRAW_ORDER);
 
-            for (T graphic : mGraphics) {
+            mHitGrid.reset(canvas.getWidth(), canvas.getHeight());
+            for (T graphic : mDrawOrder) {
                 graphic.draw(canvas);
+                mHitGrid.add(graphic, ((Graphic) graphic).mBounds);
             }
+            mHitGrid.build();
+        } finally {
+            TraceCompat.endSection();
+        }
+
+        if (mMetrics != null) {
+            mMetrics.recordSince(PipelineMetrics.Stage.OVERLAY_DRAW, startNanos);
         }
     }
+
+    /**
+     * Orders graphics from the furthest (smallest) to the closest (largest) ones.  Graphics of
+     * the same size are drawn in the order in which they were added.
+     */
+    private static final Comparator<Graphic> DRAW_ORDER = new Comparator<Graphic>() {
+        @Override
+        public int compare(Graphic first, Graphic second) {
+            if (first.mDepth != second.mDepth) {
+                return first.mDepth < second.mDepth ? -1 : 1;
+            }
+            return first.mSequence < second.mSequence ? -1 : (first.mSequence == second.mSequence ? 0 : 1);
+        }
+    };
 }
@@ -0,0 +1,152 @@
+package pl.ingensol.arqrscanner.camera;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Reports the rotation of the device around the axis perpendicular to the screen, continuously
+ * and smoothed, with the same meaning as the orientation reported by
+ * {@link android.view.OrientationEventListener}: degrees, clockwise from the natural orientation.<p>
+ *
+ * The fused rotation vector (accelerometer and gyroscope) is used when available, as it is less
+ * noisy and lags less than the accelerometer alone, which is the fallback.  Events are delivered
+ * and smoothed on a dedicated thread, so they add no work to the UI thread.  Like the
+ * orientation event listener, nothing is reported while the device lies flat.
+ */
+public class OrientationSensor implements SensorEventListener {
+
+    private static final String TAG = "OrientationSensor";
+    private static final long SMOOTHING_TIME_CONSTANT_NANOS = 80 * 1000 * 1000;
+
+    public interface Listener {
+        /**
+         * Called on the sensor thread with the smoothed rotation, in degrees from 0 to 360.
+         */
+        void onOrientationChanged(float degrees);
+    }
+
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+    private final boolean mRotationVector;
+    private final Listener mListener;
+    private HandlerThread mThread;
+
+    // used only by the sensor thread
+    private final float[] mRotationVectorValues = new float[4];
+    private final float[] mRotationMatrix = new float[9];
+    private float mSmoothedX;
+    private float mSmoothedY;
+    private long mLastTimestampNanos;
+
+    public OrientationSensor(Context context, Listener listener) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mListener = listener;
+
+        Sensor sensor = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            // does not use the magnetometer, which is disturbed by racks and forklifts
+            sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+        }
+        if (sensor == null) {
+            sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        }
+        mRotationVector = sensor != null;
+        if (sensor == null) {
+            sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        }
+        mSensor = sensor;
+    }
+
+    /**
+     * Starts reporting the orientation.
+     *
+     * @return false if the device has no sensor to detect the orientation with
+     */
+    public boolean start() {
+        if (mSensor == null) {
+            return false;
+        }
+        if (mThread != null) {
+            return true;
+        }
+        mLastTimestampNanos = 0;
+        mThread = new HandlerThread("orientation");
+        mThread.start();
+        mSensorManager.registerListener(this, mSensor, SensorManager.SENSOR_DELAY_GAME, new Handler(mThread.getLooper()));
+        Log.d(TAG, "Orientation from " + (mRotationVector ? "rotation vector" : "accelerometer"));
+        return true;
+    }
+
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mSensorManager.unregisterListener(this);
+        mThread.quit();
+        mThread = null;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        // direction opposite to gravity, in device coordinates, as measured by the accelerometer
+        float x;
+        float y;
+        float z;
+        if (mRotationVector) {
+            // some devices report more values than the conversion accepts
+            float[] values = event.values;
+            if (values.length > mRotationVectorValues.length) {
+                System.arraycopy(values, 0, mRotationVectorValues, 0, mRotationVectorValues.length);
+                values = mRotationVectorValues;
+            }
+            SensorManager.getRotationMatrixFromVector(mRotationMatrix, values);
+            x = mRotationMatrix[6];
+            y = mRotationMatrix[7];
+            z = mRotationMatrix[8];
+        } else {
+            x = event.values[0];
+            y = event.values[1];
+            z = event.values[2];
+        }
+
+        // rotation around the screen axis is undefined when the device lies flat - the same
+        // tilt limit as the orientation event listener
+        float magnitude = x * x + y * y;
+        if (magnitude * 4 < z * z) {
+            return;
+        }
+        float length = (float) Math.sqrt(magnitude);
+        x /= length;
+        y /= length;
+
+        // smoothed as a vector, so that it does not jump when passing through 0 degrees
+        if (mLastTimestampNanos == 0) {
+            mSmoothedX = x;
+            mSmoothedY = y;
+        } else {
+            float elapsedNanos = event.timestamp - mLastTimestampNanos;
+            float alpha = elapsedNanos / (elapsedNanos + SMOOTHING_TIME_CONSTANT_NANOS);
+            mSmoothedX += alpha * (x - mSmoothedX);
+            mSmoothedY += alpha * (y - mSmoothedY);
+        }
+        mLastTimestampNanos = event.timestamp;
+
+        float degrees = 90 - (float) Math.toDegrees(Math.atan2(mSmoothedY, -mSmoothedX));
+        if (degrees < 0) {
+            degrees += 360;
+        }
+        mListener.onOrientationChanged(degrees);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+}
@@ -0,0 +1,152 @@
+package pl.ingensol.arqrscanner.camera;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid over the overlay, used to hit-test the graphics drawn in the last frame.  Items
+ * are added in drawing order, so among overlapping items the one added last is the topmost.<p>
+ *
+ * The grid is rebuilt by the UI thread on every draw and is not thread safe.
+ */
+class SpatialGrid<T> {
+
+    private static final int CELL_SIZE_PX = 128;
+
+    private final List<T> mItems = new ArrayList<>();
+    private float[] mBounds = new float[0];
+    private int[] mCellStarts = new int[1];
+    private int[] mCellItems = new int[0];
+    private int mColumns;
+    private int mRows;
+
+    /**
+     * Removes all items and resizes the grid to cover a view of the given size.
+     */
+    void reset(int width, int height) {
+        mItems.clear();
+        mColumns = Math.max(1, (width + CELL_SIZE_PX - 1) / CELL_SIZE_PX);
+        mRows = Math.max(1, (height + CELL_SIZE_PX - 1) / CELL_SIZE_PX);
+        int cellsCount = mColumns * mRows;
+        if (mCellStarts.length < cellsCount + 1) {
+            mCellStarts = new int[cellsCount + 1];
+        }
+    }
+
+    /**
+     * Adds an item with its bounds in view coordinates.  {@link #build()} must be called before
+     * the item can be found.
+     */
+    void add(T item, RectF bounds) {
+        int index = mItems.size();
+        mItems.add(item);
+        if (mBounds.length < (index + 1) * 4) {
+            mBounds = Arrays.copyOf(mBounds, Math.max(16, mBounds.length * 2));
+        }
+        mBounds[index * 4] = bounds.left;
+        mBounds[index * 4 + 1] = bounds.top;
+        mBounds[index * 4 + 2] = bounds.right;
+        mBounds[index * 4 + 3] = bounds.bottom;
+    }
+
+    /**
+     * Distributes added items into cells.  Items are bucketed with a counting sort, so building
+     * costs O(items + cells) and allocates only when the grid grows.
+     */
+    void build() {
+        int cellsCount = mColumns * mRows;
+        Arrays.fill(mCellStarts, 0, cellsCount + 1, 0);
+
+        for (int i = 0; i < mItems.size(); i++) {
+            for (int row = firstRow(i); row <= lastRow(i); row++) {
+                for (int column = firstColumn(i); column <= lastColumn(i); column++) {
+                    mCellStarts[row * mColumns + column + 1]++;
+                }
+            }
+        }
+        for (int cell = 0; cell < cellsCount; cell++) {
+            mCellStarts[cell + 1] += mCellStarts[cell];
+        }
+
+        int entriesCount = mCellStarts[cellsCount];
+        if (mCellItems.length < entriesCount) {
+            mCellItems = new int[entriesCount * 2];
+        }
+        // filling advances every cell start to the cell end, shifting by one cell restores them
+        for (int i = 0; i < mItems.size(); i++) {
+            for (int row = firstRow(i); row <= lastRow(i); row++) {
+                for (int column = firstColumn(i); column <= lastColumn(i); column++) {
+                    mCellItems[mCellStarts[row * mColumns + column]++] = i;
+                }
+            }
+        }
+        System.arraycopy(mCellStarts, 0, mCellStarts, 1, cellsCount);
+        mCellStarts[0] = 0;
+    }
+
+    /**
+     * Returns the topmost item whose bounds contain the given point, or null if there is none.
+     */
+    T findTopmostAt(float x, float y) {
+        if (x < 0 || y < 0) {
+            return null;
+        }
+        int column = (int) (x / CELL_SIZE_PX);
+        int row = (int) (y / CELL_SIZE_PX);
+        if (column >= mColumns || row >= mRows) {
+            return null;
+        }
+        int cell = row * mColumns + column;
+        for (int entry = mCellStarts[cell + 1] - 1; entry >= mCellStarts[cell]; entry--) {
+            int i = mCellItems[entry];
+            if (x >= mBounds[i * 4] && y >= mBounds[i * 4 + 1]
+                    && x <= mBounds[i * 4 + 2] && y <= mBounds[i * 4 + 3]) {
+                return mItems.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the item whose bounds center is the closest to the given point, or null if the
+     * grid is empty.
+     */
+    T findNearest(float x, float y) {
+        T best = null;
+        float bestDistance = Float.MAX_VALUE;
+        for (int i = 0; i < mItems.size(); i++) {
+            float dx = x - (mBounds[i * 4] + mBounds[i * 4 + 2]) / 2;
+            float dy = y - (mBounds[i * 4 + 1] + mBounds[i * 4 + 3]) / 2;
+            float distance = (dx * dx) + (dy * dy);  // actually squared distance
+            if (distance < bestDistance) {
+                best = mItems.get(i);
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    private int firstColumn(int i) {
+        return clamp((int) (mBounds[i * 4] / CELL_SIZE_PX), mColumns);
+    }
+
+    private int firstRow(int i) {
+        return clamp((int) (mBounds[i * 4 + 1] / CELL_SIZE_PX), mRows);
+    }
+
+    private int lastColumn(int i) {
+        return clamp((int) (mBounds[i * 4 + 2] / CELL_SIZE_PX), mColumns);
+    }
+
+    private int lastRow(int i) {
+        return clamp((int) (mBounds[i * 4 + 3] / CELL_SIZE_PX), mRows);
+    }
+
+    private static int clamp(int cell, int cellsCount) {
+        return Math.max(0, Math.min(cellsCount - 1, cell));
+    }
+
+}
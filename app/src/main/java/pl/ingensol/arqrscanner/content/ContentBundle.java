@@ -0,0 +1,165 @@
+package pl.ingensol.arqrscanner.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only, memory mapped file of prepackaged content, e.g. images presented over codes at sites
+ * without connectivity, keyed by the code payload or the content url.<p>
+ *
+ * The file starts with a header: magic, version, number of index slots (a power of two) and
+ * number of entries.  The index follows: an open addressing hash table with linear probing, each
+ * slot being the FNV-1a hash of the UTF-8 key and the offset of its entry, 0 in empty slots.
+ * Entries follow the index, each being the key length, the key, the content length and the
+ * content.  All integers are big endian.<p>
+ *
+ * A lookup touches one or a few index slots and the entry, paged in by the system on demand,
+ * without reading the rest of the file.  Content is returned as a view of the mapping, so it is
+ * not copied until read by the decoder.  Safe for use by multiple threads.
+ */
+public class ContentBundle {
+
+    static final int MAGIC = 0x41524342;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    // never read through directly, only through duplicates, which have their own positions
+    private final MappedByteBuffer mBuffer;
+    private final int mSlotsCount;
+    private final int mEntriesCount;
+
+    private ContentBundle(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer,
+                          int slotsCount, int entriesCount) {
+        mFile = file;
+        mRandomAccessFile = randomAccessFile;
+        mBuffer = buffer;
+        mSlotsCount = slotsCount;
+        mEntriesCount = entriesCount;
+    }
+
+    /**
+     * Maps the given bundle file and checks its header.
+     *
+     * @throws IOException if the file cannot be read or is not a bundle
+     */
+    public static ContentBundle open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = randomAccessFile.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid bundle length " + length + ": " + file);
+            }
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            int slotsCount = buffer.getInt(8);
+            int entriesCount = buffer.getInt(12);
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException("Not a content bundle of version " + VERSION + ": " + file);
+            }
+            if (slotsCount <= 0 || Integer.bitCount(slotsCount) != 1 || entriesCount < 0 || entriesCount >= slotsCount
+                    || HEADER_SIZE + (long) slotsCount * SLOT_SIZE > length) {
+                throw new IOException("Invalid bundle index: " + file);
+            }
+            return new ContentBundle(file, randomAccessFile, buffer, slotsCount, entriesCount);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getEntriesCount() {
+        return mEntriesCount;
+    }
+
+    /**
+     * Returns a read-only view of the content stored under the given key, or null if there is
+     * none.  The view stays valid after the bundle is closed.
+     *
+     * @throws IOException if the entry is corrupted
+     */
+    public ByteBuffer find(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(keyBytes);
+        ByteBuffer buffer = mBuffer.duplicate();
+        int mask = mSlotsCount - 1;
+        int slot = hash & mask;
+        for (int i = 0; i < mSlotsCount; i++, slot = (slot + 1) & mask) {
+            int slotOffset = HEADER_SIZE + slot * SLOT_SIZE;
+            int entryOffset = buffer.getInt(slotOffset + 4);
+            if (entryOffset == 0) {
+                return null;
+            }
+            if (buffer.getInt(slotOffset) == hash && keyMatches(buffer, entryOffset, keyBytes)) {
+                return content(buffer, entryOffset + 4 + keyBytes.length);
+            }
+        }
+        // the builder never fills the index, so probing ends at an empty slot
+        throw new IOException("Corrupted bundle index: " + mFile);
+    }
+
+    /**
+     * Closes the file.  The mapping is released by the garbage collector once no content view
+     * refers to it, so lookups in progress on other threads complete safely.
+     */
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    private boolean keyMatches(ByteBuffer buffer, int entryOffset, byte[] keyBytes) throws IOException {
+        checkRange(buffer, entryOffset, 4);
+        int keyLength = buffer.getInt(entryOffset);
+        if (keyLength != keyBytes.length) {
+            return false;
+        }
+        checkRange(buffer, entryOffset + 4, keyLength);
+        for (int i = 0; i < keyLength; i++) {
+            if (buffer.get(entryOffset + 4 + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer content(ByteBuffer buffer, int lengthOffset) throws IOException {
+        checkRange(buffer, lengthOffset, 4);
+        int contentLength = buffer.getInt(lengthOffset);
+        checkRange(buffer, lengthOffset + 4, contentLength);
+        buffer.limit(lengthOffset + 4 + contentLength);
+        buffer.position(lengthOffset + 4);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    private void checkRange(ByteBuffer buffer, int offset, int length) throws IOException {
+        if (offset < HEADER_SIZE || length < 0 || (long) offset + length > buffer.capacity()) {
+            throw new IOException("Corrupted bundle entry at " + offset + ": " + mFile);
+        }
+    }
+
+    /**
+     * FNV-1a hash of the key, as written by the bundle builder.
+     */
+    static int hash(byte[] keyBytes) {
+        int hash = 0x811c9dc5;
+        for (byte b : keyBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+}
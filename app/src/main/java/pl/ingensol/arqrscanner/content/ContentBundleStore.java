@@ -0,0 +1,119 @@
+package pl.ingensol.arqrscanner.content;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Keeps the installed {@link ContentBundle} in a directory and the bundle in use.<p>
+ *
+ * A new bundle is copied next to the installed one, opened and checked, and only then renamed
+ * over it and swapped in, so readers see either the previous bundle or the new one, never a
+ * partially written file, and a broken update keeps the previous bundle in use.  Lookups in
+ * progress complete on the bundle they started with.  Safe for use by multiple threads.
+ */
+public class ContentBundleStore {
+
+    private static final String TAG = "ContentBundleStore";
+    private static final String BUNDLE_FILE_NAME = "content.bundle";
+    private static final String NEW_BUNDLE_FILE_NAME = "content.bundle.new";
+
+    private final File mDirectory;
+    private volatile ContentBundle mBundle;
+    private volatile boolean mLoaded;
+
+    public ContentBundleStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the bundle in use, or null if none is installed.  Opens the installed bundle on
+     * first use, so it should not be called from the UI thread.
+     */
+    public ContentBundle getBundle() {
+        if (!mLoaded) {
+            load();
+        }
+        return mBundle;
+    }
+
+    private synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        File file = new File(mDirectory, BUNDLE_FILE_NAME);
+        if (file.exists()) {
+            try {
+                mBundle = ContentBundle.open(file);
+                Log.i(TAG, "Opened content bundle with " + mBundle.getEntriesCount() + " entries");
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open content bundle: " + file, e);
+            }
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * Installs the given bundle file in place of the one in use.  The file is copied, so it may
+     * be removed afterwards.  Blocks for the copy, so must not be called from the UI thread.
+     *
+     * @throws IOException if the file cannot be copied or is not a bundle - the previous bundle
+     *                     stays in use
+     */
+    public synchronized void install(File source) throws IOException {
+        load();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create directory: " + mDirectory);
+        }
+        File newBundleFile = new File(mDirectory, NEW_BUNDLE_FILE_NAME);
+        copy(source, newBundleFile);
+        try {
+            ContentBundle.open(newBundleFile).close();
+        } catch (IOException e) {
+            newBundleFile.delete();
+            throw e;
+        }
+        File bundleFile = new File(mDirectory, BUNDLE_FILE_NAME);
+        if (!newBundleFile.renameTo(bundleFile)) {
+            newBundleFile.delete();
+            throw new IOException("Could not replace the bundle: " + bundleFile);
+        }
+        // the previous bundle stays mapped, as its file is only unlinked by the rename
+        ContentBundle bundle = ContentBundle.open(bundleFile);
+
+        ContentBundle previous = mBundle;
+        mBundle = bundle;
+        Log.i(TAG, "Installed content bundle with " + bundle.getEntriesCount() + " entries");
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the previous content bundle", e);
+            }
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        InputStream input = new FileInputStream(source);
+        try {
+            FileOutputStream output = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package pl.ingensol.arqrscanner.inventory;
+
+/**
+ * Set of 64-bit fingerprints of strings, used to tell whether a code was already scanned.  It
+ * takes 16 to 32 bytes per element in a single array with open addressing, so lookups stay fast
+ * and garbage free with hundreds of thousands of elements.<p>
+ *
+ * Unlike a Bloom filter it does not reject new codes once it gets full.  Two distinct codes are
+ * taken for the same one only if their fingerprints collide, which for a million codes happens
+ * with probability around 10<sup>-7</sup>.<p>
+ *
+ * Not thread safe.
+ */
+class FingerprintSet {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long EMPTY = 0;
+
+    private long[] mSlots = new long[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Adds the value, returning false if it was already present.
+     */
+    boolean add(String value) {
+        long fingerprint = fingerprint(value);
+        if ((mSize + 1) * 2 > mSlots.length) {
+            grow();
+        }
+        if (!insert(mSlots, fingerprint)) {
+            return false;
+        }
+        mSize++;
+        return true;
+    }
+
+    boolean contains(String value) {
+        long fingerprint = fingerprint(value);
+        int mask = mSlots.length - 1;
+        for (int i = (int) fingerprint & mask; mSlots[i] != EMPTY; i = (i + 1) & mask) {
+            if (mSlots[i] == fingerprint) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private void grow() {
+        long[] slots = new long[mSlots.length * 2];
+        for (long fingerprint : mSlots) {
+            if (fingerprint != EMPTY) {
+                insert(slots, fingerprint);
+            }
+        }
+        mSlots = slots;
+    }
+
+    private static boolean insert(long[] slots, long fingerprint) {
+        int mask = slots.length - 1;
+        int i = (int) fingerprint & mask;
+        while (slots[i] != EMPTY) {
+            if (slots[i] == fingerprint) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = fingerprint;
+        return true;
+    }
+
+    /**
+     * FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread bits into
+     * the low ones used as the slot index.
+     */
+    static long fingerprint(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        // zero marks empty slots
+        return hash != EMPTY ? hash : 1;
+    }
+
+}
@@ -0,0 +1,47 @@
+package pl.ingensol.arqrscanner.inventory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consecutive codes accepted during an inventory session, in the order of acceptance.
+ */
+public class InventoryBatch {
+
+    private final int mNumber;
+    private final List<String> mRawValues = new ArrayList<>();
+    private final List<Long> mAcceptedAtMillis = new ArrayList<>();
+
+    InventoryBatch(int number) {
+        mNumber = number;
+    }
+
+    void add(String rawValue, long acceptedAtMillis) {
+        mRawValues.add(rawValue);
+        mAcceptedAtMillis.add(acceptedAtMillis);
+    }
+
+    /**
+     * Returns the number of the batch in its session, starting from 1.
+     */
+    public int getNumber() {
+        return mNumber;
+    }
+
+    public int size() {
+        return mRawValues.size();
+    }
+
+    public List<String> getRawValues() {
+        return Collections.unmodifiableList(mRawValues);
+    }
+
+    /**
+     * Returns wall clock time at which the code with the given index was accepted.
+     */
+    public long getAcceptedAtMillis(int index) {
+        return mAcceptedAtMillis.get(index);
+    }
+
+}
@@ -0,0 +1,100 @@
+package pl.ingensol.arqrscanner.inventory;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import pl.ingensol.arqrscanner.json.JsonStrings;
+
+/**
+ * Persists closed {@link InventoryBatch}es, so that an inventory survives the process, e.g. to be
+ * pulled with {@code adb shell run-as pl.ingensol.arqrscanner ls files/inventory}.<p>
+ *
+ * Every batch is written to its own file, named after the session start and the batch number,
+ * with a JSON line per code: {@code {"value":"...","acceptedAt":millis}}.  A file is written
+ * to a temporary one, synced and renamed, so it is either complete or absent after a crash.
+ * Files are written on a background thread, as batches are closed on the detector thread.
+ */
+public class InventoryBatchWriter {
+
+    private static final String TAG = "InventoryBatchWriter";
+
+    private final File mDirectory;
+    private final long mSessionStartMillis;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "inventory-batches");
+        }
+    });
+
+    public InventoryBatchWriter(File directory) {
+        mDirectory = directory;
+        mSessionStartMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Queues the batch to be written.  Never blocks.
+     */
+    public void write(final InventoryBatch batch) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write inventory batch " + batch.getNumber(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes batches queued so far and stops the writer thread.
+     */
+    public void close() {
+        mExecutor.shutdown();
+    }
+
+    private void writeBatch(InventoryBatch batch) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create inventory directory: " + mDirectory);
+        }
+        File file = new File(mDirectory, String.format(Locale.US, "inventory-%d-batch-%04d.jsonl",
+                mSessionStartMillis, batch.getNumber()));
+        File temporaryFile = new File(file.getPath() + ".tmp");
+
+        FileOutputStream output = new FileOutputStream(temporaryFile);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+            StringBuilder line = new StringBuilder(128);
+            List<String> rawValues = batch.getRawValues();
+            for (int i = 0; i < rawValues.size(); i++) {
+                line.setLength(0);
+                line.append("{\"value\":");
+                JsonStrings.append(line, rawValues.get(i));
+                line.append(",\"acceptedAt\":").append(batch.getAcceptedAtMillis(i)).append("}\n");
+                writer.write(line.toString());
+            }
+            writer.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        Log.i(TAG, "Inventory batch " + batch.getNumber() + " written to " + file);
+    }
+
+}
@@ -0,0 +1,97 @@
+package pl.ingensol.arqrscanner.inventory;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * Collects each distinct code once while the device is swept across many labels.  Accepted codes
+ * are grouped into batches of {@link #BATCH_SIZE}; a batch is also closed on demand, e.g. when
+ * scanning is paused.<p>
+ *
+ * Trackers offer a code once it was read in {@link #CONSISTENT_FRAMES_COUNT} consecutive frames,
+ * which filters out misreads.  Offering is cheap enough to be done on the detector thread:
+ * duplicates are rejected by a {@link FingerprintSet} lookup and the listener is called only for
+ * new codes.
+ */
+public class InventorySession {
+
+    public static final int CONSISTENT_FRAMES_COUNT = 3;
+    private static final int BATCH_SIZE = 100;
+
+    public interface Listener {
+
+        /**
+         * Called on the thread offering the code.
+         */
+        void onCodeAccepted(Barcode barcode, long acceptedAtMillis, int codesCount, int batchNumber);
+
+        /**
+         * Called on the thread which offered the last code of the batch or closed it.
+         */
+        void onBatchClosed(InventoryBatch batch);
+    }
+
+    private final Listener mListener;
+    private final FingerprintSet mAcceptedCodes = new FingerprintSet();
+    private InventoryBatch mCurrentBatch = new InventoryBatch(1);
+
+    public InventorySession(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Accepts the code if it was not accepted before.
+     *
+     * @return whether the code was accepted
+     */
+    public boolean offer(Barcode barcode) {
+        long acceptedAtMillis = System.currentTimeMillis();
+        int codesCount;
+        int batchNumber;
+        InventoryBatch closedBatch = null;
+        synchronized (this) {
+            if (!mAcceptedCodes.add(barcode.rawValue)) {
+                return false;
+            }
+            mCurrentBatch.add(barcode.rawValue, acceptedAtMillis);
+            codesCount = mAcceptedCodes.size();
+            batchNumber = mCurrentBatch.getNumber();
+            if (mCurrentBatch.size() >= BATCH_SIZE) {
+                closedBatch = closeCurrentBatch();
+            }
+        }
+        mListener.onCodeAccepted(barcode, acceptedAtMillis, codesCount, batchNumber);
+        if (closedBatch != null) {
+            mListener.onBatchClosed(closedBatch);
+        }
+        return true;
+    }
+
+    /**
+     * Closes the current batch, unless it is empty.
+     */
+    public void closeBatch() {
+        InventoryBatch closedBatch;
+        synchronized (this) {
+            if (mCurrentBatch.size() == 0) {
+                return;
+            }
+            closedBatch = closeCurrentBatch();
+        }
+        mListener.onBatchClosed(closedBatch);
+    }
+
+    public synchronized int getCodesCount() {
+        return mAcceptedCodes.size();
+    }
+
+    public synchronized int getCurrentBatchNumber() {
+        return mCurrentBatch.getNumber();
+    }
+
+    private InventoryBatch closeCurrentBatch() {
+        InventoryBatch closedBatch = mCurrentBatch;
+        mCurrentBatch = new InventoryBatch(closedBatch.getNumber() + 1);
+        return closedBatch;
+    }
+
+}
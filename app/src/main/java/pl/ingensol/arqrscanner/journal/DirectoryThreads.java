@@ -0,0 +1,54 @@
+package pl.ingensol.arqrscanner.journal;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Starts threads which must not work on the same journal directory at the same time, e.g. the
+ * writers of a journal opened again by an activity relaunched before the previous one was
+ * destroyed.  A thread started for a directory and role first waits for the previous one to end,
+ * so the directory has a single owner in the process without blocking the caller.
+ */
+final class DirectoryThreads {
+
+    // guarded by itself
+    private static final Map<String, Thread> LAST_THREADS = new HashMap<>();
+
+    private DirectoryThreads() {
+    }
+
+    /**
+     * Starts a thread running the task once the previous thread started for the same directory
+     * and name has ended.  The task is not run if the thread is interrupted while waiting.
+     */
+    static Thread start(File directory, final String name, final Runnable task) {
+        final String key = directory.getAbsolutePath() + File.pathSeparator + name;
+        synchronized (LAST_THREADS) {
+            final Thread previous = LAST_THREADS.get(key);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (previous != null) {
+                            previous.join();
+                        }
+                        task.run();
+                    } catch (InterruptedException e) {
+                        // stopped before it started
+                    } finally {
+                        synchronized (LAST_THREADS) {
+                            if (LAST_THREADS.get(key) == Thread.currentThread()) {
+                                LAST_THREADS.remove(key);
+                            }
+                        }
+                    }
+                }
+            }, name);
+            LAST_THREADS.put(key, thread);
+            thread.start();
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+package pl.ingensol.arqrscanner.journal;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads records of a {@link ScanJournal} to an HTTP endpoint on a background thread.<p>
+ *
+ * Records are posted in gzipped batches of whole journal records, with the journal offset of
+ * the first one in the {@value #OFFSET_HEADER} header.  The endpoint acknowledges a batch with
+ * a 2xx response, optionally stating the offset it has received up to in the
+ * {@value #ACKED_OFFSET_HEADER} header.  If the batch does not start where the endpoint expects,
+ * it responds with 409 and the offset to resume from in the same header.<p>
+ *
+ * The acknowledged offset is persisted next to the journal, so uploading resumes from it after
+ * a restart, and segments before it are deleted.  Failed uploads are retried with exponential
+ * backoff, except when the endpoint expects records which have already been deleted: those cannot
+ * be sent again, so uploading stops.  An uploader started again on the same journal directory
+ * waits for the previous one to stop.
+ */
+public class JournalUploader {
+
+    private static final String TAG = "JournalUploader";
+    static final String OFFSET_HEADER = "X-Journal-Offset";
+    static final String ACKED_OFFSET_HEADER = "X-Journal-Acked-Offset";
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final long IDLE_WAIT_MS = 30 * 1000;
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+    private static final int TIMEOUT_MS = 10 * 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ScanJournal mJournal;
+    private final URL mEndpoint;
+    private final File mAckedOffsetFile;
+    private Thread mThread;
+
+    public JournalUploader(ScanJournal journal, URL endpoint) {
+        mJournal = journal;
+        mEndpoint = endpoint;
+        mAckedOffsetFile = new File(journal.getDirectory(), "acked-offset");
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = DirectoryThreads.start(mJournal.getDirectory(), "journal-upload", new Runnable() {
+            @Override
+            public void run() {
+                uploadLoop();
+            }
+        });
+    }
+
+    /**
+     * Stops uploading.  An upload in progress is abandoned and sent again after restart.
+     */
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    private void uploadLoop() {
+        long ackedOffset = readAckedOffset();
+        long retryDelayMillis = MIN_RETRY_DELAY_MS;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                long committedOffset = mJournal.awaitCommittedOffset(ackedOffset, IDLE_WAIT_MS);
+                if (committedOffset <= ackedOffset) {
+                    continue;
+                }
+                byte[] records = mJournal.readRecords(ackedOffset, committedOffset, MAX_BATCH_BYTES);
+                long newAckedOffset = upload(ackedOffset, records);
+                long startOffset = mJournal.getStartOffset();
+                if (newAckedOffset < startOffset) {
+                    Log.e(TAG, "Endpoint expects journal offset " + newAckedOffset + ", but records before "
+                            + startOffset + " were deleted after an earlier upload, uploading stopped");
+                    return;
+                }
+                if (newAckedOffset != ackedOffset) {
+                    writeAckedOffset(newAckedOffset);
+                    mJournal.deleteSegmentsBefore(newAckedOffset);
+                    ackedOffset = newAckedOffset;
+                }
+                retryDelayMillis = MIN_RETRY_DELAY_MS;
+            } catch (IOException e) {
+                Log.w(TAG, "Journal upload failed, retrying in " + retryDelayMillis + " ms", e);
+                try {
+                    Thread.sleep(retryDelayMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                retryDelayMillis = Math.min(MAX_RETRY_DELAY_MS, retryDelayMillis * 2);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Posts the records and returns the offset acknowledged by the endpoint.
+     */
+    private long upload(long offset, byte[] records) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(records.length / 2 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(body);
+        gzip.write(records);
+        gzip.close();
+
+        HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty(OFFSET_HEADER, Long.toString(offset));
+            connection.setFixedLengthStreamingMode(body.size());
+            OutputStream output = connection.getOutputStream();
+            try {
+                body.writeTo(output);
+            } finally {
+                output.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+            String ackedOffset = connection.getHeaderField(ACKED_OFFSET_HEADER);
+            if (responseCode / 100 == 2) {
+                return ackedOffset != null ? parseOffset(ackedOffset) : offset + records.length;
+            }
+            if (responseCode == HttpURLConnection.HTTP_CONFLICT && ackedOffset != null) {
+                Log.w(TAG, "Endpoint expects journal offset " + ackedOffset + " instead of " + offset);
+                return parseOffset(ackedOffset);
+            }
+            throw new IOException("Journal upload rejected with HTTP " + responseCode);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static long parseOffset(String offset) throws IOException {
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid acknowledged offset: " + offset, e);
+        }
+    }
+
+    private long readAckedOffset() {
+        if (!mAckedOffsetFile.isFile()) {
+            return 0;
+        }
+        try {
+            InputStream input = new FileInputStream(mAckedOffsetFile);
+            try {
+                byte[] content = new byte[32];
+                int length = 0;
+                int read;
+                while (length < content.length && (read = input.read(content, length, content.length - length)) != -1) {
+                    length += read;
+                }
+                return parseOffset(new String(content, 0, length, UTF_8));
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read acknowledged journal offset, uploading from the start", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Replaces the offset file atomically, so that a crash leaves either the old or the new one.
+     */
+    private void writeAckedOffset(long offset) throws IOException {
+        File temporaryFile = new File(mAckedOffsetFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temporaryFile);
+        try {
+            output.write(Long.toString(offset).getBytes(UTF_8));
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temporaryFile.renameTo(mAckedOffsetFile)) {
+            throw new IOException("Could not replace " + mAckedOffsetFile);
+        }
+    }
+
+}
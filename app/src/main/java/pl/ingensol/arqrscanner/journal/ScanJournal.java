@@ -0,0 +1,432 @@
+package pl.ingensol.arqrscanner.journal;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of accepted scans, kept in segment files so that scans survive crashes of the
+ * app until they are uploaded by {@link JournalUploader}.<p>
+ *
+ * {@link #append} only queues the record, so it can be called from the detector thread.  A writer
+ * thread writes all records queued in the meantime and then syncs the file once for all of them
+ * (group commit), so the cost of fsync is shared when codes are accepted in bursts.  The writer
+ * thread also opens the journal, truncating a torn record left at the end by a crash.  If writing
+ * a group fails, the segment is truncated back to the last synced record and the group is
+ * written again, a few times before it is dropped, so a failed write never leaves partial records
+ * for the uploader.<p>
+ *
+ * A writer thread starts writing only after the one of a journal previously opened on the same
+ * directory in the process has stopped, so a journal may be opened again before the previous
+ * one has finished closing, e.g. by a relaunched activity.<p>
+ *
+ * Every record is framed as its payload length, CRC32 of the payload and the payload itself.
+ * Positions in the journal are byte offsets counted across segments, and a segment file is named
+ * after the offset of its first byte, so readers can find the segment holding any offset.
+ */
+public class ScanJournal {
+
+    private static final String TAG = "ScanJournal";
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+    private static final int MAX_GROUP_SIZE = 256;
+    private static final int MAX_GROUP_WRITE_ATTEMPTS = 3;
+    private static final long GROUP_RETRY_DELAY_MS = 500;
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final ScanRecord CLOSE = new ScanRecord("", 0, 0, new int[0]);
+
+    private final File mDirectory;
+    private final LinkedBlockingQueue<ScanRecord> mQueue = new LinkedBlockingQueue<>();
+    private final Thread mWriter;
+
+    // used by the writer thread only
+    private final ByteArrayOutputStream mPayload = new ByteArrayOutputStream(256);
+    private final DataOutputStream mPayloadOutput = new DataOutputStream(mPayload);
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_BYTES);
+    private final CRC32 mCrc = new CRC32();
+    private File mSegment;
+    private FileOutputStream mSegmentFile;
+    private BufferedOutputStream mSegmentOutput;
+    private long mSegmentStart;
+    private long mWriteOffset;
+
+    // guarded by this
+    private long mCommittedOffset;
+
+    public ScanJournal(File directory) {
+        mDirectory = directory;
+        mWriter = DirectoryThreads.start(directory, "scan-journal", new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Queues the record to be written.  Never blocks.
+     */
+    public void append(ScanRecord record) {
+        mQueue.add(record);
+    }
+
+    /**
+     * Writes records queued so far and stops the writer thread.  Records appended later are lost.
+     * Does not wait for the writer, a journal opened again on the directory does.
+     */
+    public void close() {
+        mQueue.add(CLOSE);
+    }
+
+    /**
+     * Waits until the writer thread has stopped after {@link #close}, or the timeout elapses.
+     *
+     * @return whether the writer has stopped
+     */
+    boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+        mWriter.join(timeoutMillis);
+        return !mWriter.isAlive();
+    }
+
+    /**
+     * Returns the offset of the oldest record still kept, as segments before it may have been
+     * deleted.
+     */
+    long getStartOffset() {
+        File[] segments = listSegments();
+        return segments.length > 0 ? segmentStart(segments[0]) : 0;
+    }
+
+    /**
+     * Waits until records beyond the given offset are durable, or the timeout elapses.
+     *
+     * @return offset up to which records are durable
+     */
+    synchronized long awaitCommittedOffset(long offset, long timeoutMillis) throws InterruptedException {
+        long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        long remainingMillis = timeoutMillis;
+        while (mCommittedOffset <= offset && remainingMillis > 0) {
+            wait(remainingMillis);
+            remainingMillis = deadlineMillis - System.currentTimeMillis();
+        }
+        return mCommittedOffset;
+    }
+
+    /**
+     * Reads whole records starting at the given offset, without crossing the end offset or the
+     * end of the segment.  At least one record is read, even if it is longer than the limit.
+     */
+    byte[] readRecords(long fromOffset, long toOffset, int maxBytes) throws IOException {
+        File[] segments = listSegments();
+        File segment = null;
+        for (File candidate : segments) {
+            if (segmentStart(candidate) <= fromOffset) {
+                segment = candidate;
+            }
+        }
+        if (segment == null) {
+            throw new IOException("No journal segment holds offset " + fromOffset);
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(records);
+        long endOffset = Math.min(toOffset, segmentStart(segment) + segment.length());
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        try {
+            skipFully(input, fromOffset - segmentStart(segment));
+            long position = fromOffset;
+            while (position < endOffset) {
+                int length;
+                int crc;
+                try {
+                    length = input.readInt();
+                    crc = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (records.size() > 0 && records.size() + HEADER_BYTES + length > maxBytes) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                output.writeInt(length);
+                output.writeInt(crc);
+                output.write(payload);
+                position += HEADER_BYTES + length;
+            }
+        } finally {
+            input.close();
+        }
+        return records.toByteArray();
+    }
+
+    /**
+     * Deletes segments holding only records before the given offset, e.g. already uploaded.
+     */
+    void deleteSegmentsBefore(long offset) {
+        File[] segments = listSegments();
+        // the last segment is never deleted, it may be the one being written
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segmentStart(segments[i + 1]) <= offset && !segments[i].delete()) {
+                Log.w(TAG, "Could not delete journal segment: " + segments[i]);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            open();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open scan journal in: " + mDirectory, e);
+            return;
+        }
+
+        List<ScanRecord> group = new ArrayList<>();
+        boolean closing = false;
+        while (!closing) {
+            try {
+                group.add(mQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            mQueue.drainTo(group, MAX_GROUP_SIZE - 1);
+            // records appended after closing are lost, whether or not the group is written
+            int closeIndex = group.indexOf(CLOSE);
+            if (closeIndex >= 0) {
+                closing = true;
+                group.subList(closeIndex, group.size()).clear();
+            }
+            if (!group.isEmpty() && !writeGroup(group)) {
+                Log.e(TAG, "Dropped " + group.size() + " scans which could not be written to journal");
+            }
+            group.clear();
+        }
+
+        try {
+            mSegmentOutput.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close scan journal", e);
+        }
+    }
+
+    /**
+     * Writes and syncs the group, rolling back and retrying after failures.
+     *
+     * @return false if the group could not be written
+     */
+    private boolean writeGroup(List<ScanRecord> group) {
+        for (int attempt = 1; attempt <= MAX_GROUP_WRITE_ATTEMPTS; attempt++) {
+            try {
+                for (ScanRecord record : group) {
+                    write(record);
+                }
+                sync();
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + group.size() + " scans to journal, attempt " + attempt, e);
+            }
+            try {
+                rollBack();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not roll back journal to offset " + getCommittedOffset(), e);
+            }
+            if (attempt < MAX_GROUP_WRITE_ATTEMPTS) {
+                try {
+                    Thread.sleep(GROUP_RETRY_DELAY_MS * attempt);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Discards records written since the last sync, buffered or partially written to the file,
+     * and reopens the segment at the last committed offset.  Segments are only started right
+     * after a sync, so that offset is always in the current segment.
+     */
+    private void rollBack() throws IOException {
+        long committedOffset = getCommittedOffset();
+        try {
+            // the buffer is abandoned, closing it would flush the torn records
+            mSegmentFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close journal segment " + mSegment, e);
+        }
+        RandomAccessFile file = new RandomAccessFile(mSegment, "rw");
+        try {
+            file.setLength(committedOffset - mSegmentStart);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        mWriteOffset = committedOffset;
+        mSegmentFile = new FileOutputStream(mSegment, true);
+        mSegmentOutput = new BufferedOutputStream(mSegmentFile);
+    }
+
+    private void open() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create journal directory");
+        }
+        File[] segments = listSegments();
+        if (segments.length == 0) {
+            openSegment(0);
+            return;
+        }
+
+        File last = segments[segments.length - 1];
+        long validLength = validLength(last);
+        if (validLength < last.length()) {
+            Log.w(TAG, "Truncating torn journal segment " + last + " from " + last.length() + " to " + validLength + " bytes");
+            RandomAccessFile file = new RandomAccessFile(last, "rw");
+            try {
+                file.setLength(validLength);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        }
+        mSegment = last;
+        mSegmentStart = segmentStart(last);
+        mWriteOffset = mSegmentStart + validLength;
+        mSegmentFile = new FileOutputStream(last, true);
+        mSegmentOutput = new BufferedOutputStream(mSegmentFile);
+        commit(mWriteOffset);
+    }
+
+    private void write(ScanRecord record) throws IOException {
+        if (mWriteOffset - mSegmentStart >= SEGMENT_BYTES) {
+            sync();
+            mSegmentOutput.close();
+            openSegment(mWriteOffset);
+        }
+
+        mPayload.reset();
+        record.writeTo(mPayloadOutput);
+        mCrc.reset();
+        mCrc.update(mPayload.toByteArray());
+        mHeader.clear();
+        mHeader.putInt(mPayload.size()).putInt((int) mCrc.getValue());
+        mSegmentOutput.write(mHeader.array(), 0, HEADER_BYTES);
+        mPayload.writeTo(mSegmentOutput);
+        mWriteOffset += HEADER_BYTES + mPayload.size();
+    }
+
+    private void sync() throws IOException {
+        mSegmentOutput.flush();
+        mSegmentFile.getFD().sync();
+        commit(mWriteOffset);
+    }
+
+    private synchronized void commit(long offset) {
+        mCommittedOffset = offset;
+        notifyAll();
+    }
+
+    private synchronized long getCommittedOffset() {
+        return mCommittedOffset;
+    }
+
+    private void openSegment(long start) throws IOException {
+        mSegment = new File(mDirectory, String.format(Locale.US, "%s%020d%s", SEGMENT_PREFIX, start, SEGMENT_SUFFIX));
+        mSegmentStart = start;
+        mWriteOffset = start;
+        mSegmentFile = new FileOutputStream(mSegment);
+        mSegmentOutput = new BufferedOutputStream(mSegmentFile);
+    }
+
+    /**
+     * Returns the length of the segment prefix holding complete records with matching checksums.
+     */
+    private static long validLength(File segment) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        CRC32 crc = new CRC32();
+        long validLength = 0;
+        try {
+            while (true) {
+                int length = input.readInt();
+                int expectedCrc = input.readInt();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                validLength += HEADER_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // torn or complete - either way valid records end here
+        } finally {
+            input.close();
+        }
+        return validLength;
+    }
+
+    private File[] listSegments() {
+        File[] segments = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long firstStart = segmentStart(first);
+                long secondStart = segmentStart(second);
+                return firstStart < secondStart ? -1 : (firstStart == secondStart ? 0 : 1);
+            }
+        });
+        return segments;
+    }
+
+    private static long segmentStart(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void skipFully(DataInputStream input, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = input.skip(bytes);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+}
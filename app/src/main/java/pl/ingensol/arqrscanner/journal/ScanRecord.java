@@ -0,0 +1,66 @@
+package pl.ingensol.arqrscanner.journal;
+
+import android.graphics.Point;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Accepted scan as stored in {@link ScanJournal}.
+ */
+public class ScanRecord {
+
+    private final String mRawValue;
+    private final int mFormat;
+    private final long mTimestampMillis;
+    private final int[] mCornerPoints;
+
+    public ScanRecord(String rawValue, int format, long timestampMillis, int[] cornerPoints) {
+        mRawValue = rawValue;
+        mFormat = format;
+        mTimestampMillis = timestampMillis;
+        mCornerPoints = cornerPoints;
+    }
+
+    public static ScanRecord of(Barcode barcode, long timestampMillis) {
+        Point[] points = barcode.cornerPoints != null ? barcode.cornerPoints : new Point[0];
+        int[] cornerPoints = new int[points.length * 2];
+        for (int i = 0; i < points.length; i++) {
+            cornerPoints[i * 2] = points[i].x;
+            cornerPoints[i * 2 + 1] = points[i].y;
+        }
+        return new ScanRecord(barcode.rawValue, barcode.format, timestampMillis, cornerPoints);
+    }
+
+    public String getRawValue() {
+        return mRawValue;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    /**
+     * Returns corner points in the preview coordinates as x, y pairs.
+     */
+    public int[] getCornerPoints() {
+        return mCornerPoints;
+    }
+
+    void writeTo(DataOutput output) throws IOException {
+        output.writeUTF(mRawValue);
+        output.writeInt(mFormat);
+        output.writeLong(mTimestampMillis);
+        output.writeByte(mCornerPoints.length / 2);
+        for (int coordinate : mCornerPoints) {
+            output.writeInt(coordinate);
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package pl.ingensol.arqrscanner.json;
+
+import java.util.Locale;
+
+/**
+ * Writes strings as JSON string literals, for the JSON lines written by the inventory batch
+ * writer and the bulk decoder.
+ */
+public final class JsonStrings {
+
+    private JsonStrings() {
+    }
+
+    /**
+     * Appends the value quoted, with quotes, backslashes and control characters escaped.
+     */
+    public static void append(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+}
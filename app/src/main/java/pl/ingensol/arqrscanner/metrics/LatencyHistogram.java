@@ -0,0 +1,154 @@
+package pl.ingensol.arqrscanner.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with log-linear buckets in the spirit of HdrHistogram: values are bucketed
+ * by their power of two and each power is split into {@link #SUB_BUCKETS_COUNT} linear
+ * sub-buckets, which keeps the relative error of reported values around 3% from microseconds
+ * up to half an hour.<p>
+ *
+ * Recording is lock-free and does not allocate, so it can be called from any thread on hot
+ * paths.  Readers take {@link Snapshot}s, which can be subtracted to get interval statistics.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 26;
+    private static final int BUCKETS_COUNT = SUB_BUCKETS_COUNT * (MAX_EXPONENT + 2);
+    private static final long MAX_VALUE_MICROS = (1L << (SUB_BUCKET_BITS + MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS_COUNT);
+
+    /**
+     * Records a single latency.  Values beyond the supported range are clamped.
+     */
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, Math.min(MAX_VALUE_MICROS, nanos / 1000));
+        mCounts.incrementAndGet(indexOf(micros));
+    }
+
+    /**
+     * Returns counts recorded so far.  Values recorded concurrently may or may not be included.
+     */
+    public Snapshot takeSnapshot() {
+        long[] counts = new long[BUCKETS_COUNT];
+        for (int i = 0; i < BUCKETS_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts);
+    }
+
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        int mantissa = (int) (micros >> exponent) - SUB_BUCKETS_COUNT;
+        return SUB_BUCKETS_COUNT + exponent * SUB_BUCKETS_COUNT + mantissa;
+    }
+
+    static long highestMicrosOf(int index) {
+        if (index < SUB_BUCKETS_COUNT) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS_COUNT) / SUB_BUCKETS_COUNT;
+        int mantissa = (index - SUB_BUCKETS_COUNT) % SUB_BUCKETS_COUNT;
+        return ((long) (SUB_BUCKETS_COUNT + mantissa) << exponent) + (1L << exponent) - 1;
+    }
+
+    /**
+     * Immutable copy of histogram counts.
+     */
+    public static class Snapshot {
+
+        private final long[] mCounts;
+        private final long mTotalCount;
+
+        Snapshot(long[] counts) {
+            mCounts = counts;
+            long totalCount = 0;
+            for (long count : counts) {
+                totalCount += count;
+            }
+            mTotalCount = totalCount;
+        }
+
+        /**
+         * Returns counts recorded between the earlier snapshot and this one.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] counts = new long[mCounts.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = mCounts[i] - earlier.mCounts[i];
+            }
+            return new Snapshot(counts);
+        }
+
+        /**
+         * Returns counts recorded in both snapshots, e.g. to merge per-thread histograms.
+         */
+        public Snapshot plus(Snapshot other) {
+            long[] counts = new long[mCounts.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = mCounts[i] + other.mCounts[i];
+            }
+            return new Snapshot(counts);
+        }
+
+        public long getTotalCount() {
+            return mTotalCount;
+        }
+
+        /**
+         * Returns the value which the given percentage of recorded values did not exceed, or zero
+         * if nothing was recorded.
+         *
+         * @param percentile from 0 to 100
+         */
+        public long getValueAtPercentileNanos(double percentile) {
+            if (mTotalCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return highestMicrosOf(i) * 1000;
+                }
+            }
+            return highestMicrosOf(mCounts.length - 1) * 1000;
+        }
+
+        public long getMaxNanos() {
+            for (int i = mCounts.length - 1; i >= 0; i--) {
+                if (mCounts[i] > 0) {
+                    return highestMicrosOf(i) * 1000;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Visits non-empty buckets in the order of their values.
+         */
+        public void forEachBucket(BucketVisitor visitor) {
+            for (int i = 0; i < mCounts.length; i++) {
+                if (mCounts[i] > 0) {
+                    visitor.visit(highestMicrosOf(i), mCounts[i]);
+                }
+            }
+        }
+
+    }
+
+    public interface BucketVisitor {
+        /**
+         * @param highestValueMicros the highest value counted in the bucket
+         */
+        void visit(long highestValueMicros, long count);
+    }
+
+}
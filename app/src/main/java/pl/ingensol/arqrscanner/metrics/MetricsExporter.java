@@ -0,0 +1,166 @@
+package pl.ingensol.arqrscanner.metrics;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Periodically appends {@link PipelineMetrics} aggregated over the last period to JSON lines
+ * files, so that they can be pulled from a lagging device in the field and analysed offline,
+ * e.g. with {@code adb shell run-as pl.ingensol.arqrscanner cat files/metrics/metrics-0.jsonl}.<p>
+ *
+ * Every line holds, per stage, the count, p50/p90/p99/max latency in microseconds and non-empty
+ * histogram buckets as {@code [highestValueMicros, count]} pairs, plus frame counters and state.  Files are
+ * rotated: {@code metrics-0.jsonl} is the current one and at most {@link #MAX_FILES_COUNT} files
+ * of about {@link #MAX_FILE_BYTES} each are kept.
+ */
+public class MetricsExporter {
+
+    private static final String TAG = "MetricsExporter";
+    private static final long EXPORT_PERIOD_MS = 60 * 1000;
+    private static final int MAX_FILES_COUNT = 5;
+    private static final long MAX_FILE_BYTES = 512 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final PipelineMetrics mMetrics;
+    // created on start and cancelled after the final export on stop, so no thread outlives it
+    private Timer mTimer;
+    private final LatencyHistogram.Snapshot[] mPreviousSnapshots =
+            new LatencyHistogram.Snapshot[PipelineMetrics.Stage.values().length];
+    private long mPreviousDetectedFramesCount;
+    private long mPreviousDroppedFramesCount;
+    private TimerTask mExportTask;
+
+    public MetricsExporter(File directory, PipelineMetrics metrics) {
+        mDirectory = directory;
+        mMetrics = metrics;
+        for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+            mPreviousSnapshots[stage.ordinal()] = metrics.getHistogram(stage).takeSnapshot();
+        }
+    }
+
+    public synchronized void start() {
+        if (mExportTask != null) {
+            return;
+        }
+        mExportTask = new TimerTask() {
+            @Override
+            public void run() {
+                export();
+            }
+        };
+        mTimer = new Timer("metrics-export", true);
+        mTimer.scheduleAtFixedRate(mExportTask, EXPORT_PERIOD_MS, EXPORT_PERIOD_MS);
+    }
+
+    /**
+     * Stops periodic export and exports what was collected since the last one, on the export
+     * thread, which then ends.
+     */
+    public synchronized void stop() {
+        if (mExportTask == null) {
+            return;
+        }
+        mExportTask.cancel();
+        mExportTask = null;
+        final Timer timer = mTimer;
+        mTimer = null;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                export();
+                // cancelled from its last task, so that the final export is not discarded
+                timer.cancel();
+            }
+        }, 0);
+    }
+
+    private synchronized void export() {
+        String line = buildLine();
+        try {
+            File file = prepareFile();
+            OutputStream output = new FileOutputStream(file, true);
+            try {
+                output.write(line.getBytes(UTF_8));
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not export metrics", e);
+        }
+    }
+
+    private String buildLine() {
+        final StringBuilder line = new StringBuilder(1024);
+        line.append("{\"time\":").append(System.currentTimeMillis());
+        line.append(",\"stages\":{");
+        for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = mMetrics.getHistogram(stage).takeSnapshot();
+            LatencyHistogram.Snapshot interval = snapshot.minus(mPreviousSnapshots[stage.ordinal()]);
+            mPreviousSnapshots[stage.ordinal()] = snapshot;
+
+            if (stage.ordinal() > 0) {
+                line.append(',');
+            }
+            line.append(String.format(Locale.US,
+                    "\"%s\":{\"count\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"max\":%d,\"buckets\":[",
+                    stage.getLabel(), interval.getTotalCount(),
+                    interval.getValueAtPercentileNanos(50) / 1000, interval.getValueAtPercentileNanos(90) / 1000,
+                    interval.getValueAtPercentileNanos(99) / 1000, interval.getMaxNanos() / 1000));
+            final int bucketsStart = line.length();
+            interval.forEachBucket(new LatencyHistogram.BucketVisitor() {
+                @Override
+                public void visit(long highestValueMicros, long count) {
+                    if (line.length() > bucketsStart) {
+                        line.append(',');
+                    }
+                    line.append('[').append(highestValueMicros).append(',').append(count).append(']');
+                }
+            });
+            line.append("]}");
+        }
+
+        long detectedFramesCount = mMetrics.getDetectedFramesCount();
+        long droppedFramesCount = mMetrics.getDroppedFramesCount();
+        line.append("},\"frames\":{\"detected\":").append(detectedFramesCount - mPreviousDetectedFramesCount)
+                .append(",\"dropped\":").append(droppedFramesCount - mPreviousDroppedFramesCount)
+                .append("},\"downscale\":").append(mMetrics.getDetectionDownscale())
+                .append(",\"quality\":\"").append(mMetrics.getQualityLevel())
+                .append("\",\"prefetch\":{\"done\":").append(mMetrics.getPrefetchedCount())
+                .append(",\"total\":").append(mMetrics.getPrefetchTotalCount())
+                .append("}}\n");
+        mPreviousDetectedFramesCount = detectedFramesCount;
+        mPreviousDroppedFramesCount = droppedFramesCount;
+        return line.toString();
+    }
+
+    private File prepareFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create metrics directory: " + mDirectory);
+        }
+        File current = fileAt(0);
+        if (current.length() >= MAX_FILE_BYTES) {
+            fileAt(MAX_FILES_COUNT - 1).delete();
+            for (int i = MAX_FILES_COUNT - 2; i >= 0; i--) {
+                File file = fileAt(i);
+                if (file.exists() && !file.renameTo(fileAt(i + 1))) {
+                    throw new IOException("Could not rotate metrics file: " + file);
+                }
+            }
+        }
+        return current;
+    }
+
+    private File fileAt(int index) {
+        return new File(mDirectory, "metrics-" + index + ".jsonl");
+    }
+
+}
@@ -0,0 +1,106 @@
+package pl.ingensol.arqrscanner.metrics;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.TextView;
+
+import java.util.Locale;
+
+/**
+ * Developer overlay showing, for the last refresh interval, p50/p99 latencies of every pipeline
+ * stage, the detection frame rate, the number of dropped camera frames, the current detection
+ * downscale and quality level, and the progress of prefetching.  Must be used from the UI
+ * thread.
+ */
+public class PerformanceHud {
+
+    private static final long REFRESH_INTERVAL_MS = 500;
+
+    private final TextView mView;
+    private final PipelineMetrics mMetrics;
+    private final Handler mHandler = new Handler();
+    private final LatencyHistogram.Snapshot[] mPreviousSnapshots =
+            new LatencyHistogram.Snapshot[PipelineMetrics.Stage.values().length];
+    private long mPreviousDetectedFramesCount;
+    private long mPreviousDroppedFramesCount;
+    private long mPreviousRefreshMillis;
+    private boolean mShown;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    public PerformanceHud(TextView view, PipelineMetrics metrics) {
+        mView = view;
+        mMetrics = metrics;
+    }
+
+    public void toggle() {
+        if (mShown) {
+            hide();
+        } else {
+            show();
+        }
+    }
+
+    public void show() {
+        mShown = true;
+        takeBaseline();
+        mView.setText("");
+        mView.setVisibility(View.VISIBLE);
+        mHandler.postDelayed(mRefresh, REFRESH_INTERVAL_MS);
+    }
+
+    public void hide() {
+        mShown = false;
+        mHandler.removeCallbacks(mRefresh);
+        mView.setVisibility(View.GONE);
+    }
+
+    private void takeBaseline() {
+        for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+            mPreviousSnapshots[stage.ordinal()] = mMetrics.getHistogram(stage).takeSnapshot();
+        }
+        mPreviousDetectedFramesCount = mMetrics.getDetectedFramesCount();
+        mPreviousDroppedFramesCount = mMetrics.getDroppedFramesCount();
+        mPreviousRefreshMillis = SystemClock.elapsedRealtime();
+    }
+
+    private void refresh() {
+        StringBuilder text = new StringBuilder();
+        for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = mMetrics.getHistogram(stage).takeSnapshot();
+            LatencyHistogram.Snapshot interval = snapshot.minus(mPreviousSnapshots[stage.ordinal()]);
+            mPreviousSnapshots[stage.ordinal()] = snapshot;
+            text.append(String.format(Locale.US, "%-8s p50 %6.1f  p99 %6.1f ms  n %d%n",
+                    stage.getLabel(),
+                    interval.getValueAtPercentileNanos(50) / 1e6,
+                    interval.getValueAtPercentileNanos(99) / 1e6,
+                    interval.getTotalCount()));
+        }
+
+        long nowMillis = SystemClock.elapsedRealtime();
+        long detectedFramesCount = mMetrics.getDetectedFramesCount();
+        long droppedFramesCount = mMetrics.getDroppedFramesCount();
+        double fps = (detectedFramesCount - mPreviousDetectedFramesCount) * 1000.0
+                / Math.max(1, nowMillis - mPreviousRefreshMillis);
+        text.append(String.format(Locale.US, "fps %.1f  dropped %d  scale 1/%d  quality %s",
+                fps, droppedFramesCount - mPreviousDroppedFramesCount, mMetrics.getDetectionDownscale(),
+                mMetrics.getQualityLevel()));
+        if (mMetrics.getPrefetchTotalCount() > 0) {
+            text.append(String.format(Locale.US, "  prefetch %d/%d",
+                    mMetrics.getPrefetchedCount(), mMetrics.getPrefetchTotalCount()));
+        }
+        mPreviousDetectedFramesCount = detectedFramesCount;
+        mPreviousDroppedFramesCount = droppedFramesCount;
+        mPreviousRefreshMillis = nowMillis;
+
+        mView.setText(text);
+    }
+
+}
@@ -0,0 +1,168 @@
+package pl.ingensol.arqrscanner.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms of the scanning pipeline stages together with frame counters.  Cheap enough
+ * to stay enabled in production: recording a stage costs a clock read and an atomic increment.
+ * Startup phases are recorded as stages too, once per activity creation or camera start.
+ */
+public class PipelineMetrics {
+
+    public enum Stage {
+        /**
+         * Time spent in {@code detect()} by the detector, not including the time a frame waited for
+         * it.  Frame timestamps cannot tell that wait: the camera source counts them from its own
+         * start and replayed frames carry the recorded ones.  Frames which waited so long that
+         * newer ones replaced them are counted as dropped instead.
+         */
+        DETECTION("detect"),
+        /**
+         * Time from the end of detection until the results reach a tracker.
+         */
+        DELIVERY("deliver"),
+        CONTENT_LOAD("content"),
+        CONTENT_REFILL("refill"),
+        OVERLAY_DRAW("draw"),
+        LAYOUT_INFLATE("inflate"),
+        DETECTOR_WARM_UP("warm-up"),
+        CAMERA_OPEN("camera"),
+        FIRST_FRAME("first");
+
+        private final String mLabel;
+
+        Stage(String label) {
+            mLabel = label;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+    }
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Stage.values().length];
+    private final AtomicLong mDetectedFramesCount = new AtomicLong();
+    private final AtomicLong mDroppedFramesCount = new AtomicLong();
+    private volatile int mLastFrameId = -1;
+    private volatile long mLastDetectionEndNanos;
+    private final AtomicLong mCameraStartNanos = new AtomicLong();
+    private volatile int mDetectionDownscale = 1;
+    private volatile String mQualityLevel = "full";
+    private volatile int mPrefetchedCount;
+    private volatile int mPrefetchTotalCount;
+
+    public PipelineMetrics() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the start time to be passed to {@link #recordSince}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public void recordSince(Stage stage, long startNanos) {
+        mHistograms[stage.ordinal()].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    /**
+     * Called when the camera is requested to start, to record time until its first frame is
+     * detected, see {@link #onFrameDetectedByDetector}.
+     */
+    public void onCameraStarting() {
+        mCameraStartNanos.set(System.nanoTime());
+    }
+
+    /**
+     * Called by the detector thread when a frame is detected.  Camera frames which never reached
+     * the detector, because it was still busy with a previous one, are counted as dropped.
+     */
+    void onFrameDetected(int frameId, long detectionEndNanos) {
+        int lastFrameId = mLastFrameId;
+        if (lastFrameId >= 0 && frameId > lastFrameId + 1) {
+            mDroppedFramesCount.addAndGet(frameId - lastFrameId - 1);
+        }
+        mLastFrameId = frameId;
+        mLastDetectionEndNanos = detectionEndNanos;
+        mDetectedFramesCount.incrementAndGet();
+    }
+
+    /**
+     * Called by the detector thread when a frame is detected by the barcode detector itself, as
+     * opposed to one skipped while the detector is still being created.  Records time from the
+     * camera start for the first one.
+     */
+    public void onFrameDetectedByDetector() {
+        long cameraStartNanos = mCameraStartNanos.get();
+        if (cameraStartNanos != 0 && mCameraStartNanos.compareAndSet(cameraStartNanos, 0)) {
+            recordSince(Stage.FIRST_FRAME, cameraStartNanos);
+        }
+    }
+
+    /**
+     * Records time from the end of the last detection, called when its results reach a tracker.
+     */
+    public void recordDelivery() {
+        long detectionEndNanos = mLastDetectionEndNanos;
+        if (detectionEndNanos != 0) {
+            recordSince(Stage.DELIVERY, detectionEndNanos);
+        }
+    }
+
+    public long getDetectedFramesCount() {
+        return mDetectedFramesCount.get();
+    }
+
+    public long getDroppedFramesCount() {
+        return mDroppedFramesCount.get();
+    }
+
+    /**
+     * Sets the factor by which camera frames are currently downscaled before detection.
+     */
+    public void setDetectionDownscale(int downscale) {
+        mDetectionDownscale = downscale;
+    }
+
+    public int getDetectionDownscale() {
+        return mDetectionDownscale;
+    }
+
+    /**
+     * Sets the label of the quality level the pipeline currently runs at.
+     */
+    public void setQualityLevel(String qualityLevel) {
+        mQualityLevel = qualityLevel;
+    }
+
+    public String getQualityLevel() {
+        return mQualityLevel;
+    }
+
+    /**
+     * Sets how many of the items of the current prefetch manifest have been processed.
+     */
+    public void setPrefetchProgress(int prefetchedCount, int totalCount) {
+        mPrefetchTotalCount = totalCount;
+        mPrefetchedCount = prefetchedCount;
+    }
+
+    public int getPrefetchedCount() {
+        return mPrefetchedCount;
+    }
+
+    /**
+     * Returns the number of items of the current prefetch manifest, 0 if there is none.
+     */
+    public int getPrefetchTotalCount() {
+        return mPrefetchTotalCount;
+    }
+
+}
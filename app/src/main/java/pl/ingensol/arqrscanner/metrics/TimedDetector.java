@@ -0,0 +1,51 @@
+package pl.ingensol.arqrscanner.metrics;
+
+import android.support.v4.os.TraceCompat;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+/**
+ * Detector which delegates detection and records its duration and frame counters in
+ * {@link PipelineMetrics}.  Only the time spent in the wrapped detector is recorded, see
+ * {@link PipelineMetrics.Stage#DETECTION}.  Use it in place of the wrapped detector when building
+ * the camera source.
+ */
+public class TimedDetector<T> extends Detector<T> {
+
+    private final Detector<T> mDelegate;
+    private final PipelineMetrics mMetrics;
+
+    public TimedDetector(Detector<T> delegate, PipelineMetrics metrics) {
+        mDelegate = delegate;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public SparseArray<T> detect(Frame frame) {
+        long startNanos = PipelineMetrics.start();
+        SparseArray<T> detections;
+        TraceCompat.beginSection("detect");
+        try {
+            detections = mDelegate.detect(frame);
+        } finally {
+            TraceCompat.endSection();
+        }
+        mMetrics.recordSince(PipelineMetrics.Stage.DETECTION, startNanos);
+        mMetrics.onFrameDetected(frame.getMetadata().getId(), System.nanoTime());
+        return detections;
+    }
+
+    @Override
+    public boolean isOperational() {
+        return mDelegate.isOperational();
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        mDelegate.release();
+    }
+
+}
@@ -0,0 +1,48 @@
+package pl.ingensol.arqrscanner.quality;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.vision.Detector;
+
+/**
+ * Processor which, after passing detections on, holds the detector thread until the minimum
+ * interval between detections has passed.  The camera source keeps only the latest frame
+ * meanwhile, so detection runs less often on fresh frames, and trackers do not see frames
+ * without detections as they would if frames were skipped.
+ */
+public class PacedProcessor<T> implements Detector.Processor<T> {
+
+    private final Detector.Processor<T> mDelegate;
+    private volatile long mMinIntervalMillis;
+    private long mNextDetectionMillis;
+
+    public PacedProcessor(Detector.Processor<T> delegate) {
+        mDelegate = delegate;
+    }
+
+    public void setMinIntervalMillis(long minIntervalMillis) {
+        mMinIntervalMillis = minIntervalMillis;
+    }
+
+    @Override
+    public void receiveDetections(Detector.Detections<T> detections) {
+        mDelegate.receiveDetections(detections);
+
+        long nowMillis = SystemClock.elapsedRealtime();
+        long waitMillis = mNextDetectionMillis - nowMillis;
+        if (waitMillis > 0) {
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mNextDetectionMillis = Math.max(nowMillis, mNextDetectionMillis) + mMinIntervalMillis;
+    }
+
+    @Override
+    public void release() {
+        mDelegate.release();
+    }
+
+}
@@ -0,0 +1,166 @@
+package pl.ingensol.arqrscanner.quality;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.util.Log;
+
+import pl.ingensol.arqrscanner.metrics.LatencyHistogram;
+import pl.ingensol.arqrscanner.metrics.PipelineMetrics;
+
+/**
+ * Picks the {@link QualityLevel} of the pipeline, so that long sessions on a heating device
+ * degrade gradually instead of collapsing into seconds of lag.<p>
+ *
+ * Every {@link #EVALUATION_INTERVAL_MS} the 90th percentile of detection and delivery times is
+ * compared with the frame budget.  Quality is lowered by one level after
+ * {@link #OVER_BUDGET_EVALUATIONS_COUNT} evaluations over the budget and raised by one level
+ * after {@link #UNDER_BUDGET_EVALUATIONS_COUNT} evaluations well under it, so that it does not
+ * oscillate.  Battery temperature, which follows the temperature of the device, and power save
+ * mode set the best level allowed regardless of the budget.<p>
+ *
+ * Must be used from the UI thread.  Start it when the activity resumes and stop it when paused.
+ */
+public class QualityGovernor {
+
+    private static final String TAG = "QualityGovernor";
+    private static final long EVALUATION_INTERVAL_MS = 1000;
+    private static final long FRAME_BUDGET_NANOS = 50 * 1000 * 1000;
+    /**
+     * Fraction of the frame budget under which the pipeline is considered to have headroom.
+     */
+    private static final double HEADROOM_FRACTION = 0.5;
+    private static final int OVER_BUDGET_EVALUATIONS_COUNT = 2;
+    private static final int UNDER_BUDGET_EVALUATIONS_COUNT = 5;
+    // battery temperatures, in tenths of a degree Celsius, above which quality is capped
+    private static final int WARM_TEMPERATURE = 400;
+    private static final int HOT_TEMPERATURE = 430;
+    private static final int CRITICAL_TEMPERATURE = 460;
+
+    public interface Listener {
+        /**
+         * Called on the UI thread with the level to apply, also once when started.
+         */
+        void onQualityLevelChanged(QualityLevel level);
+    }
+
+    private final Context mContext;
+    private final PipelineMetrics mMetrics;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+    private final LatencyHistogram.Snapshot[] mPreviousSnapshots = new LatencyHistogram.Snapshot[2];
+    private QualityLevel mBudgetLevel = QualityLevel.FULL;
+    private QualityLevel mLevel;
+    private int mOverBudgetEvaluationsCount;
+    private int mUnderBudgetEvaluationsCount;
+    private boolean mStarted;
+
+    private final Runnable mEvaluate = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            mHandler.postDelayed(mEvaluate, EVALUATION_INTERVAL_MS);
+        }
+    };
+
+    public QualityGovernor(Context context, PipelineMetrics metrics, Listener listener) {
+        mContext = context.getApplicationContext();
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mPreviousSnapshots[0] = mMetrics.getHistogram(PipelineMetrics.Stage.DETECTION).takeSnapshot();
+        mPreviousSnapshots[1] = mMetrics.getHistogram(PipelineMetrics.Stage.DELIVERY).takeSnapshot();
+        mOverBudgetEvaluationsCount = 0;
+        mUnderBudgetEvaluationsCount = 0;
+        mLevel = null;
+        apply(lowerOf(mBudgetLevel, deviceLevel()));
+        mHandler.postDelayed(mEvaluate, EVALUATION_INTERVAL_MS);
+    }
+
+    public void stop() {
+        mStarted = false;
+        mHandler.removeCallbacks(mEvaluate);
+    }
+
+    private void evaluate() {
+        LatencyHistogram.Snapshot detection = mMetrics.getHistogram(PipelineMetrics.Stage.DETECTION).takeSnapshot();
+        LatencyHistogram.Snapshot delivery = mMetrics.getHistogram(PipelineMetrics.Stage.DELIVERY).takeSnapshot();
+        LatencyHistogram.Snapshot detectionInterval = detection.minus(mPreviousSnapshots[0]);
+        LatencyHistogram.Snapshot deliveryInterval = delivery.minus(mPreviousSnapshots[1]);
+        mPreviousSnapshots[0] = detection;
+        mPreviousSnapshots[1] = delivery;
+
+        if (detectionInterval.getTotalCount() > 0) {
+            long frameNanos = detectionInterval.getValueAtPercentileNanos(90)
+                    + deliveryInterval.getValueAtPercentileNanos(90);
+            if (frameNanos > FRAME_BUDGET_NANOS) {
+                mUnderBudgetEvaluationsCount = 0;
+                if (++mOverBudgetEvaluationsCount >= OVER_BUDGET_EVALUATIONS_COUNT) {
+                    mOverBudgetEvaluationsCount = 0;
+                    mBudgetLevel = mBudgetLevel.lower();
+                }
+            } else if (frameNanos < FRAME_BUDGET_NANOS * HEADROOM_FRACTION) {
+                mOverBudgetEvaluationsCount = 0;
+                if (++mUnderBudgetEvaluationsCount >= UNDER_BUDGET_EVALUATIONS_COUNT) {
+                    mUnderBudgetEvaluationsCount = 0;
+                    mBudgetLevel = mBudgetLevel.higher();
+                }
+            } else {
+                mOverBudgetEvaluationsCount = 0;
+                mUnderBudgetEvaluationsCount = 0;
+            }
+        }
+        apply(lowerOf(mBudgetLevel, deviceLevel()));
+    }
+
+    /**
+     * Returns the best level allowed by the temperature and power state of the device.
+     */
+    private QualityLevel deviceLevel() {
+        QualityLevel level = QualityLevel.FULL;
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int temperature = battery != null ? battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) : 0;
+        if (temperature >= CRITICAL_TEMPERATURE) {
+            level = QualityLevel.MINIMAL;
+        } else if (temperature >= HOT_TEMPERATURE) {
+            level = QualityLevel.LOW;
+        } else if (temperature >= WARM_TEMPERATURE) {
+            level = QualityLevel.REDUCED;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            if (powerManager.isPowerSaveMode()) {
+                level = lowerOf(level, QualityLevel.REDUCED);
+            }
+        }
+        return level;
+    }
+
+    private void apply(QualityLevel level) {
+        if (level == mLevel) {
+            return;
+        }
+        Log.i(TAG, "Quality level " + (mLevel != null ? mLevel.getLabel() : "-") + " -> " + level.getLabel());
+        mLevel = level;
+        mMetrics.setQualityLevel(level.getLabel());
+        mListener.onQualityLevelChanged(level);
+    }
+
+    /**
+     * Returns the lower of the given levels.
+     */
+    private static QualityLevel lowerOf(QualityLevel first, QualityLevel second) {
+        return first.ordinal() >= second.ordinal() ? first : second;
+    }
+
+}
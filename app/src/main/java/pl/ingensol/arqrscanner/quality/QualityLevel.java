@@ -0,0 +1,78 @@
+package pl.ingensol.arqrscanner.quality;
+
+/**
+ * Quality levels stepped through by {@link QualityGovernor}, from the best to the cheapest one.
+ */
+public enum QualityLevel {
+    FULL("full", 0, 1, 0, 1, true),
+    REDUCED("reduced", 0, 2, 33, 1, true),
+    LOW("low", 66, 2, 50, 2, true),
+    MINIMAL("minimal", 133, 4, 100, 2, false);
+
+    private final String mLabel;
+    private final long mMinDetectionIntervalMillis;
+    private final int mMinDetectionDownscale;
+    private final long mMinDrawIntervalMillis;
+    private final int mBitmapSampleSize;
+    private final boolean mImageDownloads;
+
+    QualityLevel(String label, long minDetectionIntervalMillis, int minDetectionDownscale,
+                 long minDrawIntervalMillis, int bitmapSampleSize, boolean imageDownloads) {
+        mLabel = label;
+        mMinDetectionIntervalMillis = minDetectionIntervalMillis;
+        mMinDetectionDownscale = minDetectionDownscale;
+        mMinDrawIntervalMillis = minDrawIntervalMillis;
+        mBitmapSampleSize = bitmapSampleSize;
+        mImageDownloads = imageDownloads;
+    }
+
+    public String getLabel() {
+        return mLabel;
+    }
+
+    /**
+     * Returns the minimum time between starts of two detections, 0 for detecting every frame
+     * the detector can keep up with.
+     */
+    public long getMinDetectionIntervalMillis() {
+        return mMinDetectionIntervalMillis;
+    }
+
+    /**
+     * Returns the factor by which camera frames are at least downscaled before detection.
+     */
+    public int getMinDetectionDownscale() {
+        return mMinDetectionDownscale;
+    }
+
+    /**
+     * Returns the minimum time between overlay redraws, 0 for redrawing on every change.
+     */
+    public long getMinDrawIntervalMillis() {
+        return mMinDrawIntervalMillis;
+    }
+
+    /**
+     * Returns the sample size with which downloaded images are decoded.  Above 1, images are
+     * also decoded without alpha, at 16 bits per pixel.
+     */
+    public int getBitmapSampleSize() {
+        return mBitmapSampleSize;
+    }
+
+    /**
+     * Returns whether images are downloaded, otherwise codes are shown as text cards.
+     */
+    public boolean isImageDownloads() {
+        return mImageDownloads;
+    }
+
+    QualityLevel lower() {
+        return this == MINIMAL ? MINIMAL : values()[ordinal() + 1];
+    }
+
+    QualityLevel higher() {
+        return this == FULL ? FULL : values()[ordinal() - 1];
+    }
+
+}
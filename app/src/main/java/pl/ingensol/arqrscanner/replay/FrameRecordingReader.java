@@ -0,0 +1,111 @@
+package pl.ingensol.arqrscanner.replay;
+
+import android.graphics.Point;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads frames written by {@link FrameRecordingWriter}.
+ */
+public class FrameRecordingReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final DataInputStream mInput;
+    private final UrlRewriter mUrlRewriter;
+
+    /**
+     * Rewrites URLs of the recorded barcodes, e.g. to point them at a local stand-in content
+     * server instead of the original one.
+     */
+    public interface UrlRewriter {
+        String rewrite(String url);
+    }
+
+    public FrameRecordingReader(File file, UrlRewriter urlRewriter) throws IOException {
+        mInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        mUrlRewriter = urlRewriter;
+        if (mInput.readInt() != FrameRecordingWriter.MAGIC) {
+            mInput.close();
+            throw new IOException("Not a frame recording: " + file);
+        }
+        int version = mInput.readInt();
+        if (version != FrameRecordingWriter.VERSION) {
+            mInput.close();
+            throw new IOException("Unsupported frame recording version: " + version);
+        }
+    }
+
+    /**
+     * Returns the next frame or null if the recording has ended.  A recording cut off before its
+     * end (e.g. because the app was killed) ends at the last complete frame.
+     */
+    public RecordedFrame read() throws IOException {
+        try {
+            if (mInput.readByte() != FrameRecordingWriter.RECORD_FRAME) {
+                return null;
+            }
+            long timestampMillis = mInput.readLong();
+            int id = mInput.readInt();
+            int width = mInput.readInt();
+            int height = mInput.readInt();
+            int rotation = mInput.readInt();
+
+            byte[] luminance = null;
+            int luminanceLength = mInput.readInt();
+            if (luminanceLength > 0) {
+                luminance = new byte[luminanceLength];
+                mInput.readFully(luminance);
+            }
+
+            int barcodesCount = mInput.readInt();
+            SparseArray<Barcode> barcodes = new SparseArray<>();
+            for (int i = 0; i < barcodesCount; i++) {
+                int barcodeId = mInput.readInt();
+                barcodes.put(barcodeId, readBarcode());
+            }
+            return new RecordedFrame(timestampMillis, id, width, height, rotation, luminance, barcodes);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private Barcode readBarcode() throws IOException {
+        Barcode barcode = new Barcode();
+        barcode.format = mInput.readInt();
+        barcode.valueFormat = mInput.readInt();
+        barcode.rawValue = rewriteUrl(mInput.readUTF());
+        barcode.displayValue = rewriteUrl(mInput.readUTF());
+        if (mInput.readBoolean()) {
+            barcode.url = new Barcode.UrlBookmark();
+            barcode.url.url = rewriteUrl(mInput.readUTF());
+        }
+        Point[] cornerPoints = new Point[mInput.readInt()];
+        for (int i = 0; i < cornerPoints.length; i++) {
+            int x = mInput.readInt();
+            int y = mInput.readInt();
+            cornerPoints[i] = new Point(x, y);
+        }
+        barcode.cornerPoints = cornerPoints;
+        return barcode;
+    }
+
+    private String rewriteUrl(String value) {
+        return mUrlRewriter != null ? mUrlRewriter.rewrite(value) : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+
+}
@@ -0,0 +1,224 @@
+package pl.ingensol.arqrscanner.replay;
+
+import android.graphics.Point;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes preview frames and the barcodes detected in them to a recording file, which can be
+ * replayed later with {@link ReplayDriver}.<p>
+ *
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by frame records, each
+ * introduced by {@link #RECORD_FRAME} and holding the frame metadata, its optional luminance
+ * plane and the detected barcodes with their values and corner points.  {@link #RECORD_END}
+ * terminates the file.<p>
+ *
+ * Records are serialized on the calling thread into a few reused buffers, the luminance plane
+ * with a single bulk copy, and written to the file by a background thread, so detection only
+ * waits for the disk when it falls behind by more than {@link #RECORDS_IN_FLIGHT_COUNT} frames.
+ */
+public class FrameRecordingWriter implements Closeable {
+
+    static final int MAGIC = 0x41525152; // "ARQR"
+    static final int VERSION = 1;
+    static final byte RECORD_END = 0;
+    static final byte RECORD_FRAME = 1;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int RECORDS_IN_FLIGHT_COUNT = 3;
+
+    private final DataOutputStream mOutput;
+    private final boolean mWithImages;
+    private final BlockingQueue<Record> mFreeRecords = new ArrayBlockingQueue<>(RECORDS_IN_FLIGHT_COUNT);
+    // filled records, followed by mEndOfRecords when closing
+    private final BlockingQueue<Record> mFilledRecords = new ArrayBlockingQueue<>(RECORDS_IN_FLIGHT_COUNT + 1);
+    private final Record mEndOfRecords = new Record();
+    private final Thread mWriterThread;
+    private volatile IOException mWriteError;
+    private boolean mClosed;
+
+    /**
+     * @param withImages whether luminance planes of the frames should be recorded, which makes it
+     *                   possible to replay detection as well, at the cost of a few megabytes per
+     *                   frame
+     */
+    public FrameRecordingWriter(File file, boolean withImages) throws IOException {
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        mWithImages = withImages;
+        mOutput.writeInt(MAGIC);
+        mOutput.writeInt(VERSION);
+        for (int i = 0; i < RECORDS_IN_FLIGHT_COUNT; i++) {
+            mFreeRecords.add(new Record());
+        }
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "frame-recording");
+        mWriterThread.start();
+    }
+
+    /**
+     * Queues the frame and its barcodes to be written.  Blocks only if the writer thread is
+     * behind by more than a few frames.
+     *
+     * @throws IOException if writing one of the previous frames failed
+     */
+    public synchronized void write(Frame frame, SparseArray<Barcode> barcodes) throws IOException {
+        checkWriteError();
+        Record record;
+        try {
+            record = mFreeRecords.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the recording writer");
+        }
+        try {
+            record.fill(frame, barcodes, mWithImages);
+        } catch (IOException | RuntimeException e) {
+            mFreeRecords.add(record);
+            throw e;
+        }
+        mFilledRecords.add(record);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mFilledRecords.add(mEndOfRecords);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the recording writer");
+        }
+        try {
+            checkWriteError();
+            mOutput.writeByte(RECORD_END);
+        } finally {
+            mOutput.close();
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        IOException writeError = mWriteError;
+        if (writeError != null) {
+            throw new IOException("Could not write recording", writeError);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Record record;
+            try {
+                record = mFilledRecords.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (record == mEndOfRecords) {
+                return;
+            }
+            if (mWriteError == null) {
+                try {
+                    record.writeTo(mOutput);
+                } catch (IOException e) {
+                    // reported to the next write or close, later records are dropped
+                    mWriteError = e;
+                }
+            }
+            mFreeRecords.add(record);
+        }
+    }
+
+    /**
+     * Frame record serialized in memory: the fields before the luminance plane, the plane and the
+     * fields after it.  Buffers are reused by the following frames.
+     */
+    private static class Record {
+
+        private final ByteArrayOutputStream mHeadBytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream mHead = new DataOutputStream(mHeadBytes);
+        private final ByteArrayOutputStream mTailBytes = new ByteArrayOutputStream(1024);
+        private final DataOutputStream mTail = new DataOutputStream(mTailBytes);
+        private byte[] mLuminance = new byte[0];
+        private int mLuminanceLength;
+
+        void fill(Frame frame, SparseArray<Barcode> barcodes, boolean withImages) throws IOException {
+            mHeadBytes.reset();
+            mTailBytes.reset();
+
+            Frame.Metadata metadata = frame.getMetadata();
+            mHead.writeByte(RECORD_FRAME);
+            mHead.writeLong(metadata.getTimestampMillis());
+            mHead.writeInt(metadata.getId());
+            mHead.writeInt(metadata.getWidth());
+            mHead.writeInt(metadata.getHeight());
+            mHead.writeInt(metadata.getRotation());
+
+            ByteBuffer imageData = withImages ? frame.getGrayscaleImageData() : null;
+            if (imageData != null) {
+                // grayscale data is the whole NV21 buffer, starting with the luminance plane
+                mLuminanceLength = metadata.getWidth() * metadata.getHeight();
+                if (mLuminance.length < mLuminanceLength) {
+                    mLuminance = new byte[mLuminanceLength];
+                }
+                ByteBuffer luminance = imageData.duplicate();
+                luminance.rewind();
+                luminance.get(mLuminance, 0, mLuminanceLength);
+            } else {
+                mLuminanceLength = 0;
+            }
+            mHead.writeInt(mLuminanceLength);
+
+            mTail.writeInt(barcodes.size());
+            for (int i = 0; i < barcodes.size(); i++) {
+                writeBarcode(barcodes.keyAt(i), barcodes.valueAt(i));
+            }
+        }
+
+        void writeTo(DataOutputStream output) throws IOException {
+            mHeadBytes.writeTo(output);
+            output.write(mLuminance, 0, mLuminanceLength);
+            mTailBytes.writeTo(output);
+        }
+
+        private void writeBarcode(int id, Barcode barcode) throws IOException {
+            mTail.writeInt(id);
+            mTail.writeInt(barcode.format);
+            mTail.writeInt(barcode.valueFormat);
+            mTail.writeUTF(barcode.rawValue != null ? barcode.rawValue : "");
+            mTail.writeUTF(barcode.displayValue != null ? barcode.displayValue : "");
+            boolean hasUrl = barcode.url != null && barcode.url.url != null;
+            mTail.writeBoolean(hasUrl);
+            if (hasUrl) {
+                mTail.writeUTF(barcode.url.url);
+            }
+            Point[] cornerPoints = barcode.cornerPoints != null ? barcode.cornerPoints : new Point[0];
+            mTail.writeInt(cornerPoints.length);
+            for (Point point : cornerPoints) {
+                mTail.writeInt(point.x);
+                mTail.writeInt(point.y);
+            }
+        }
+
+    }
+
+}
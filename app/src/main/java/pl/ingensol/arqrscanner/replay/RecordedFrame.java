@@ -0,0 +1,69 @@
+package pl.ingensol.arqrscanner.replay;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * A preview frame read from a recording together with the barcodes detected in it.
+ */
+public class RecordedFrame {
+
+    private final long mTimestampMillis;
+    private final int mId;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final byte[] mLuminance;
+    private final SparseArray<Barcode> mBarcodes;
+
+    RecordedFrame(long timestampMillis, int id, int width, int height, int rotation,
+                  byte[] luminance, SparseArray<Barcode> barcodes) {
+        mTimestampMillis = timestampMillis;
+        mId = id;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mLuminance = luminance;
+        mBarcodes = barcodes;
+    }
+
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns rotation of the frame as one of {@code Frame.ROTATION_*} constants.
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * Returns the luminance plane of the frame, or null if the recording was made without
+     * images.
+     */
+    public byte[] getLuminance() {
+        return mLuminance;
+    }
+
+    /**
+     * Returns barcodes detected in the frame, keyed by their tracking ids.
+     */
+    public SparseArray<Barcode> getBarcodes() {
+        return mBarcodes;
+    }
+
+}
@@ -0,0 +1,60 @@
+package pl.ingensol.arqrscanner.replay;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.io.IOException;
+
+/**
+ * Detector which delegates detection and records every frame with its results.  Use it in place
+ * of the wrapped detector when building the camera source.
+ */
+public class RecordingDetector extends Detector<Barcode> {
+
+    private static final String TAG = "RecordingDetector";
+
+    private final Detector<Barcode> mDelegate;
+    private final FrameRecordingWriter mWriter;
+    private boolean mFailed;
+
+    public RecordingDetector(Detector<Barcode> delegate, FrameRecordingWriter writer) {
+        mDelegate = delegate;
+        mWriter = writer;
+    }
+
+    @Override
+    public SparseArray<Barcode> detect(Frame frame) {
+        SparseArray<Barcode> barcodes = mDelegate.detect(frame);
+        if (!mFailed) {
+            try {
+                mWriter.write(frame, barcodes);
+            } catch (IOException e) {
+                // stop recording but keep detecting
+                Log.e(TAG, "Could not record frame, recording stopped", e);
+                mFailed = true;
+            }
+        }
+        return barcodes;
+    }
+
+    @Override
+    public boolean isOperational() {
+        return mDelegate.isOperational();
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        mDelegate.release();
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close recording", e);
+        }
+    }
+
+}
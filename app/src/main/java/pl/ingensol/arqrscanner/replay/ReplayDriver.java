@@ -0,0 +1,177 @@
+package pl.ingensol.arqrscanner.replay;
+
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
+
+import com.google.android.gms.vision.CameraSource;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+import pl.ingensol.arqrscanner.camera.GraphicOverlay;
+
+/**
+ * Pushes a recording made with {@link FrameRecordingWriter} through the tracking pipeline instead
+ * of the camera and measures how long the pipeline takes for every frame.<p>
+ *
+ * If a detector is given and the recording contains frame images, frames are passed to the
+ * detector, so the measured latency covers detection as well.  Otherwise the recorded
+ * detections are passed straight to the processor.  Either way, latency is measured from handing
+ * the frame over until the processor returns, i.e. until all trackers have updated the overlay
+ * model, including any content loading done by them.
+ */
+public class ReplayDriver {
+
+    private final Detector.Processor<Barcode> mProcessor;
+    private final Detector<Barcode> mDetector;
+    private final GraphicOverlay<?> mOverlay;
+
+    private ByteBuffer mImageBuffer;
+
+    /**
+     * @param processor processor receiving the detections, e.g. the multi-processor creating
+     *                  trackers
+     * @param detector  detector with {@code processor} set, or null to replay recorded detections
+     * @param overlay   overlay to set the recorded preview size on, or null
+     */
+    public ReplayDriver(Detector.Processor<Barcode> processor, Detector<Barcode> detector, GraphicOverlay<?> overlay) {
+        mProcessor = processor;
+        mDetector = detector;
+        mOverlay = overlay;
+    }
+
+    /**
+     * Replays the whole recording on the calling thread.
+     *
+     * @param paced whether frames should be pushed with the recorded timing, or as fast as
+     *              the pipeline takes them
+     */
+    public Report replay(FrameRecordingReader reader, boolean paced) throws IOException, InterruptedException {
+        long[] latencies = new long[256];
+        int framesCount = 0;
+        int barcodesCount = 0;
+        long firstTimestampMillis = 0;
+        long startMillis = SystemClock.elapsedRealtime();
+        long startNanos = System.nanoTime();
+
+        RecordedFrame frame;
+        while ((frame = reader.read()) != null) {
+            if (framesCount == 0) {
+                firstTimestampMillis = frame.getTimestampMillis();
+                setCameraInfo(frame);
+            } else if (paced) {
+                long delayMillis = (frame.getTimestampMillis() - firstTimestampMillis) - (SystemClock.elapsedRealtime() - startMillis);
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+            }
+
+            long frameStartNanos = System.nanoTime();
+            push(frame);
+            long latency = System.nanoTime() - frameStartNanos;
+
+            if (framesCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[framesCount++] = latency;
+            barcodesCount += frame.getBarcodes().size();
+        }
+
+        return new Report(Arrays.copyOf(latencies, framesCount), barcodesCount, System.nanoTime() - startNanos);
+    }
+
+    private void push(RecordedFrame frame) {
+        if (mDetector != null && frame.getLuminance() != null) {
+            mDetector.receiveFrame(buildFrame(frame));
+        } else {
+            mProcessor.receiveDetections(new Detector.Detections<>(frame.getBarcodes(), new Frame.Metadata(), true));
+        }
+    }
+
+    private Frame buildFrame(RecordedFrame frame) {
+        byte[] luminance = frame.getLuminance();
+        // NV21 with neutral chroma - the detector looks at luminance only
+        int bufferSize = luminance.length * 3 / 2;
+        if (mImageBuffer == null || mImageBuffer.capacity() != bufferSize) {
+            mImageBuffer = ByteBuffer.allocateDirect(bufferSize);
+            for (int i = luminance.length; i < bufferSize; i++) {
+                mImageBuffer.put(i, (byte) 0x80);
+            }
+        }
+        mImageBuffer.position(0);
+        mImageBuffer.put(luminance);
+        mImageBuffer.rewind();
+        return new Frame.Builder()
+                .setImageData(mImageBuffer, frame.getWidth(), frame.getHeight(), ImageFormat.NV21)
+                .setId(frame.getId())
+                .setTimestampMillis(frame.getTimestampMillis())
+                .setRotation(frame.getRotation())
+                .build();
+    }
+
+    private void setCameraInfo(RecordedFrame frame) {
+        if (mOverlay == null) {
+            return;
+        }
+        boolean rotated = frame.getRotation() == Frame.ROTATION_90 || frame.getRotation() == Frame.ROTATION_270;
+        if (rotated) {
+            mOverlay.setCameraInfo(frame.getHeight(), frame.getWidth(), CameraSource.CAMERA_FACING_BACK);
+        } else {
+            mOverlay.setCameraInfo(frame.getWidth(), frame.getHeight(), CameraSource.CAMERA_FACING_BACK);
+        }
+        mOverlay.clear();
+    }
+
+    /**
+     * Latency percentiles and throughput of a single replay.
+     */
+    public static class Report {
+
+        private final long[] mSortedLatenciesNanos;
+        private final int mBarcodesCount;
+        private final long mDurationNanos;
+
+        Report(long[] latenciesNanos, int barcodesCount, long durationNanos) {
+            mSortedLatenciesNanos = latenciesNanos;
+            Arrays.sort(mSortedLatenciesNanos);
+            mBarcodesCount = barcodesCount;
+            mDurationNanos = durationNanos;
+        }
+
+        public int getFramesCount() {
+            return mSortedLatenciesNanos.length;
+        }
+
+        /**
+         * Returns the latency which the given percentage of frames did not exceed.
+         *
+         * @param percentile from 0 to 100
+         */
+        public long getLatencyPercentileNanos(double percentile) {
+            if (mSortedLatenciesNanos.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * mSortedLatenciesNanos.length);
+            return mSortedLatenciesNanos[Math.max(0, Math.min(mSortedLatenciesNanos.length - 1, rank - 1))];
+        }
+
+        public double getFramesPerSecond() {
+            return mDurationNanos > 0 ? mSortedLatenciesNanos.length * 1e9 / mDurationNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "frames=%d barcodes=%d fps=%.1f latency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                    getFramesCount(), mBarcodesCount, getFramesPerSecond(),
+                    getLatencyPercentileNanos(50) / 1e6, getLatencyPercentileNanos(90) / 1e6,
+                    getLatencyPercentileNanos(99) / 1e6, getLatencyPercentileNanos(100) / 1e6);
+        }
+    }
+
+}
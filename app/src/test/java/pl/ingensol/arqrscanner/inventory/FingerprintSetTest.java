@@ -0,0 +1,56 @@
+package pl.ingensol.arqrscanner.inventory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintSetTest {
+
+    @Test
+    public void addsNewValuesOnce() {
+        FingerprintSet set = new FingerprintSet();
+
+        assertTrue(set.add("code 1"));
+        assertTrue(set.add("code 2"));
+        assertFalse(set.add("code 1"));
+
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void containsOnlyAddedValues() {
+        FingerprintSet set = new FingerprintSet();
+        set.add("code 1");
+
+        assertTrue(set.contains("code 1"));
+        assertFalse(set.contains("code 2"));
+        assertFalse(set.contains(""));
+    }
+
+    @Test
+    public void keepsValuesWhenGrowing() {
+        FingerprintSet set = new FingerprintSet();
+        // many times the initial capacity, so the slots are reallocated a few times
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            assertTrue(set.add("code " + i));
+        }
+
+        assertEquals(count, set.size());
+        for (int i = 0; i < count; i++) {
+            assertTrue(set.contains("code " + i));
+            assertFalse(set.add("code " + i));
+        }
+        assertFalse(set.contains("code " + count));
+        assertEquals(count, set.size());
+    }
+
+    @Test
+    public void fingerprintIsNeverEmptySlot() {
+        assertTrue(FingerprintSet.fingerprint("") != 0);
+        assertTrue(FingerprintSet.fingerprint("code") != 0);
+    }
+
+}
@@ -0,0 +1,158 @@
+package pl.ingensol.arqrscanner.journal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScanJournalTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void framesRecordsWithLengthAndCrc() throws Exception {
+        File directory = mFolder.newFolder();
+        ScanJournal journal = writeAndClose(directory, "code 1", "code 2", "code 3");
+
+        List<byte[]> payloads = readPayloads(journal);
+
+        assertEquals(3, payloads.size());
+        assertEquals("code 1", rawValueOf(payloads.get(0)));
+        assertEquals("code 3", rawValueOf(payloads.get(2)));
+    }
+
+    @Test
+    public void truncatesTornRecordWhenReopened() throws Exception {
+        File directory = mFolder.newFolder();
+        writeAndClose(directory, "code 1", "code 2");
+        File segment = onlySegment(directory);
+        long validLength = segment.length();
+        // a crash in the middle of a record: its header and a part of its payload
+        FileOutputStream output = new FileOutputStream(segment, true);
+        try {
+            output.write(new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 5, 6, 7});
+        } finally {
+            output.close();
+        }
+
+        ScanJournal reopened = new ScanJournal(directory);
+        assertEquals(validLength, reopened.awaitCommittedOffset(validLength - 1, TIMEOUT_MS));
+        reopened.append(record("code 3"));
+        reopened.close();
+        assertTrue(reopened.awaitClosed(TIMEOUT_MS));
+
+        List<byte[]> payloads = readPayloads(reopened);
+        assertEquals(3, payloads.size());
+        assertEquals("code 3", rawValueOf(payloads.get(2)));
+    }
+
+    @Test
+    public void truncatesRecordWithBadCrcWhenReopened() throws Exception {
+        File directory = mFolder.newFolder();
+        ScanJournal journal = writeAndClose(directory, "code 1", "code 2");
+        long firstRecordEnd = 8 + readPayloads(journal).get(0).length;
+        File segment = onlySegment(directory);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        ScanJournal reopened = new ScanJournal(directory);
+        assertEquals(firstRecordEnd, reopened.awaitCommittedOffset(firstRecordEnd - 1, TIMEOUT_MS));
+        reopened.close();
+        assertTrue(reopened.awaitClosed(TIMEOUT_MS));
+
+        assertEquals(firstRecordEnd, segment.length());
+        assertEquals(1, readPayloads(reopened).size());
+    }
+
+    @Test
+    public void reopenedJournalWaitsForPreviousWriter() throws Exception {
+        File directory = mFolder.newFolder();
+        ScanJournal journal = new ScanJournal(directory);
+        journal.append(record("code 1"));
+        // opened again before the first one is closed, as by a relaunched activity
+        ScanJournal reopened = new ScanJournal(directory);
+        reopened.append(record("code 2"));
+        journal.close();
+        reopened.close();
+        assertTrue(reopened.awaitClosed(TIMEOUT_MS));
+
+        List<byte[]> payloads = readPayloads(reopened);
+        assertEquals(2, payloads.size());
+        assertEquals("code 1", rawValueOf(payloads.get(0)));
+        assertEquals("code 2", rawValueOf(payloads.get(1)));
+    }
+
+    private static ScanJournal writeAndClose(File directory, String... rawValues) throws InterruptedException {
+        ScanJournal journal = new ScanJournal(directory);
+        for (String rawValue : rawValues) {
+            journal.append(record(rawValue));
+        }
+        journal.close();
+        assertTrue(journal.awaitClosed(TIMEOUT_MS));
+        return journal;
+    }
+
+    private static ScanRecord record(String rawValue) {
+        return new ScanRecord(rawValue, 256, 1000, new int[] {1, 2, 3, 4, 5, 6, 7, 8});
+    }
+
+    private static File onlySegment(File directory) {
+        File[] segments = directory.listFiles();
+        List<File> logs = new ArrayList<>();
+        for (File segment : segments) {
+            if (segment.getName().endsWith(".log")) {
+                logs.add(segment);
+            }
+        }
+        assertEquals(1, logs.size());
+        return logs.get(0);
+    }
+
+    /**
+     * Reads all records of the journal, checking their framing and checksums.
+     */
+    private static List<byte[]> readPayloads(ScanJournal journal) throws IOException {
+        byte[] records = journal.readRecords(0, Long.MAX_VALUE, Integer.MAX_VALUE);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(records));
+        List<byte[]> payloads = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        while (input.available() > 0) {
+            int length = input.readInt();
+            int expectedCrc = input.readInt();
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            crc.reset();
+            crc.update(payload);
+            assertEquals(expectedCrc, (int) crc.getValue());
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    private static String rawValueOf(byte[] payload) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+    }
+
+}
@@ -0,0 +1,140 @@
+package pl.ingensol.arqrscanner.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a content bundle read by the app's {@code ContentBundle}, for sites without connectivity.
+ * The list file has a line for each entry: the key - a code payload or a content url - a tab and
+ * the path of the image file, relative to the list file.  Push the bundle to a device and pass its
+ * path in the {@code content_bundle} intent extra to install it.<p>
+ *
+ * Usage: {@code ContentBundleBuilder <listFile> <outputFile>}
+ */
+public class ContentBundleBuilder {
+
+    // must match ContentBundle
+    private static final int MAGIC = 0x41524342;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ContentBundleBuilder <listFile> <outputFile>");
+            System.exit(1);
+        }
+        File listFile = new File(args[0]);
+        Map<String, File> entries = readList(listFile);
+        write(entries, new File(args[1]));
+        System.out.println("Wrote " + entries.size() + " entries to " + args[1]);
+    }
+
+    private static Map<String, File> readList(File listFile) throws IOException {
+        Map<String, File> entries = new LinkedHashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(listFile), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int tab = line.lastIndexOf('\t');
+                if (tab <= 0) {
+                    throw new IOException("Expected <key>\\t<file>: " + line);
+                }
+                entries.put(line.substring(0, tab), new File(listFile.getAbsoluteFile().getParentFile(), line.substring(tab + 1)));
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    private static void write(Map<String, File> entries, File outputFile) throws IOException {
+        // at most half full, so that lookups probe few slots
+        int slotsCount = Integer.highestOneBit(Math.max(1, entries.size()) * 2) * 2;
+        int[] slotHashes = new int[slotsCount];
+        long[] slotOffsets = new long[slotsCount];
+
+        List<byte[]> keys = new ArrayList<>();
+        long offset = HEADER_SIZE + (long) slotsCount * SLOT_SIZE;
+        for (Map.Entry<String, File> entry : entries.entrySet()) {
+            byte[] key = entry.getKey().getBytes(UTF_8);
+            keys.add(key);
+            int hash = hash(key);
+            int slot = hash & (slotsCount - 1);
+            while (slotOffsets[slot] != 0) {
+                slot = (slot + 1) & (slotsCount - 1);
+            }
+            slotHashes[slot] = hash;
+            slotOffsets[slot] = offset;
+            offset += 4 + key.length + 4 + entry.getValue().length();
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Bundle would exceed 2 GB, split the list");
+        }
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 64 * 1024));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(slotsCount);
+            output.writeInt(entries.size());
+            for (int slot = 0; slot < slotsCount; slot++) {
+                output.writeInt(slotHashes[slot]);
+                output.writeInt((int) slotOffsets[slot]);
+            }
+            int i = 0;
+            for (File file : entries.values()) {
+                byte[] key = keys.get(i++);
+                output.writeInt(key.length);
+                output.write(key);
+                output.writeInt((int) file.length());
+                copy(file, output);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void copy(File file, DataOutputStream output) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * FNV-1a hash of the key.
+     */
+    private static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+}
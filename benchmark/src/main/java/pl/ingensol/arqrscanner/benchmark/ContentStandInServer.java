@@ -0,0 +1,83 @@
+package pl.ingensol.arqrscanner.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP server standing in for the content server behind scanned codes during replays.
+ * Serves files from a directory by their path, optionally after a fixed delay simulating network
+ * latency.  Make it reachable from a device with {@code adb reverse tcp:PORT tcp:PORT} and pass
+ * {@code http://127.0.0.1:PORT} as the replay content base URL.<p>
+ *
+ * Usage: {@code ContentStandInServer <directory> [port] [delayMillis]}
+ */
+public class ContentStandInServer {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int THREADS_COUNT = 4;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ContentStandInServer <directory> [port] [delayMillis]");
+            System.exit(1);
+        }
+        final File root = new File(args[0]).getCanonicalFile();
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        final long delayMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange, root, delayMillis);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(THREADS_COUNT));
+        server.start();
+        System.out.println("Serving " + root + " on port " + port + " with " + delayMillis + " ms delay");
+    }
+
+    private static void serve(HttpExchange exchange, File root, long delayMillis) throws IOException {
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        File file = new File(root, exchange.getRequestURI().getPath()).getCanonicalFile();
+        if (!file.getPath().startsWith(root.getPath()) || !file.isFile()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(200, file.length());
+        InputStream input = new FileInputStream(file);
+        try {
+            OutputStream output = exchange.getResponseBody();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package pl.ingensol.arqrscanner.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal HTTP endpoint standing in for the scan journal sync server.  Accepts batches posted by
+ * the app's journal uploader, checks that they continue where the previous one ended and that
+ * record checksums match, and appends them to a file, which then mirrors the device journal.
+ * Batches are optionally rejected at random to exercise retries.  Make it reachable from
+ * a device with {@code adb reverse tcp:PORT tcp:PORT} and pass {@code http://127.0.0.1:PORT/}
+ * as the upload url.<p>
+ *
+ * Usage: {@code JournalStandInServer <outputFile> [port] [failurePercent]}
+ */
+public class JournalStandInServer {
+
+    private static final int DEFAULT_PORT = 8081;
+    private static final String OFFSET_HEADER = "X-Journal-Offset";
+    private static final String ACKED_OFFSET_HEADER = "X-Journal-Acked-Offset";
+
+    private final File mOutputFile;
+    private final int mFailurePercent;
+    private final Random mRandom = new Random();
+    private long mAckedOffset;
+    private long mRecordsCount;
+
+    JournalStandInServer(File outputFile, int failurePercent) {
+        mOutputFile = outputFile;
+        mFailurePercent = failurePercent;
+        mAckedOffset = outputFile.length();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: JournalStandInServer <outputFile> [port] [failurePercent]");
+            System.exit(1);
+        }
+        final JournalStandInServer journalServer = new JournalStandInServer(new File(args[0]),
+                args.length > 2 ? Integer.parseInt(args[2]) : 0);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    journalServer.receive(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        System.out.println("Receiving journal into " + args[0] + " on port " + port + " from offset " + journalServer.mAckedOffset);
+    }
+
+    // the default executor handles exchanges on a single thread
+    private void receive(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        long offset;
+        try {
+            offset = Long.parseLong(exchange.getRequestHeaders().getFirst(OFFSET_HEADER));
+        } catch (NumberFormatException e) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        if (offset != mAckedOffset) {
+            System.out.println("Batch at offset " + offset + " rejected, expecting " + mAckedOffset);
+            exchange.getResponseHeaders().set(ACKED_OFFSET_HEADER, Long.toString(mAckedOffset));
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+        if (mRandom.nextInt(100) < mFailurePercent) {
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        byte[] records = readFully(new GZIPInputStream(exchange.getRequestBody()));
+        int recordsCount = countRecords(records);
+        if (recordsCount < 0) {
+            System.out.println("Batch at offset " + offset + " holds corrupted records");
+            exchange.sendResponseHeaders(422, -1);
+            return;
+        }
+        FileOutputStream output = new FileOutputStream(mOutputFile, true);
+        try {
+            output.write(records);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        mAckedOffset += records.length;
+        mRecordsCount += recordsCount;
+        System.out.println("Received " + recordsCount + " records, " + mRecordsCount + " in total, acknowledged offset " + mAckedOffset);
+
+        exchange.getResponseHeaders().set(ACKED_OFFSET_HEADER, Long.toString(mAckedOffset));
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    /**
+     * Returns the number of records, each being payload length, CRC32 and payload, or -1 if the
+     * records are truncated or a checksum does not match.
+     */
+    private static int countRecords(byte[] records) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(records));
+        CRC32 crc = new CRC32();
+        int count = 0;
+        int position = 0;
+        while (position < records.length) {
+            if (records.length - position < 8) {
+                return -1;
+            }
+            int length = input.readInt();
+            int expectedCrc = input.readInt();
+            if (length < 0 || length > records.length - position - 8) {
+                return -1;
+            }
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != expectedCrc) {
+                return -1;
+            }
+            position += 8 + length;
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+}
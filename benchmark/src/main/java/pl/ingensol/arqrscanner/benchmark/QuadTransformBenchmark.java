@@ -0,0 +1,144 @@
+package pl.ingensol.arqrscanner.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import pl.ingensol.arqrscanner.geometry.Homography;
+import pl.ingensol.arqrscanner.geometry.QuadGeometry;
+import pl.ingensol.arqrscanner.geometry.QuadTransform;
+
+/**
+ * Measures the cost of computing the on-screen transformation of a single barcode, as done by
+ * {@code BarcodeGraphic} on every draw.  Each operation transforms the next of
+ * {@code codesCount} barcodes, so the score is per barcode while the working set matches a scene
+ * with that many codes.  Run with {@code -prof gc} to see the allocation rate.<p>
+ *
+ * {@code detectionNoisePx} is the jitter of detected corners between frames.  Below the default
+ * move threshold of {@link QuadTransform} it models a steadily tracked barcode, above it
+ * a moving one, for which the cache never hits.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuadTransformBenchmark {
+
+    private static final float SCALE = 2.5f;
+    private static final int FRAMES_COUNT = 64;
+    private static final int CONTENT_WIDTH = 640;
+    private static final int CONTENT_HEIGHT = 480;
+
+    @Param({"1", "16", "64", "256"})
+    public int codesCount;
+
+    @Param({"1", "8"})
+    public float detectionNoisePx;
+
+    // corner points of every code in every frame
+    private float[][][] mFrames;
+    private QuadTransform[] mTransforms;
+    private int mCode;
+    private int mFrame;
+
+    private final float[] mCenter = new float[2];
+    private final float[] mRotatedPoints = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+    private final float[] mBarcodePoints = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+    private final float[] mQuad = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+    private final float[] mMatrixValues = new float[Homography.VALUES_COUNT];
+
+    /**
+     * Counts, per iteration, how many draws were made and how many of them had to compute
+     * the transformation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long draws;
+        public long transformComputations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            draws = 0;
+            transformComputations = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mFrames = new float[FRAMES_COUNT][codesCount][];
+        mTransforms = new QuadTransform[codesCount];
+        for (int code = 0; code < codesCount; code++) {
+            float x = random.nextFloat() * 1000;
+            float y = random.nextFloat() * 1800;
+            float size = 50 + random.nextFloat() * 250;
+            float[] corners = {x, y, x + size, y, x + size, y + size, x, y + size};
+            for (int frame = 0; frame < FRAMES_COUNT; frame++) {
+                float[] jittered = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+                for (int i = 0; i < jittered.length; i++) {
+                    jittered[i] = corners[i] + (random.nextFloat() * 2 - 1) * detectionNoisePx;
+                }
+                mFrames[frame][code] = jittered;
+            }
+            mTransforms[code] = new QuadTransform(SCALE);
+        }
+    }
+
+    /**
+     * Computes the transformation from scratch, as it was done before caching.
+     */
+    @Benchmark
+    public float[] uncached(Counters counters) {
+        float[] corners = nextCorners();
+        QuadGeometry.findCenter(corners, mCenter);
+        QuadGeometry.computeBarcodePoints(corners, mBarcodePoints, mCenter, 0, mRotatedPoints);
+        QuadGeometry.scalePointsWithRespectToPointKeepingRatio(mBarcodePoints, mQuad, mCenter, CONTENT_WIDTH, CONTENT_HEIGHT, SCALE);
+        QuadGeometry.computeArea(mQuad);
+        Homography.rectToQuad(CONTENT_WIDTH, CONTENT_HEIGHT, mQuad, mMatrixValues);
+        counters.draws++;
+        counters.transformComputations++;
+        return mMatrixValues;
+    }
+
+    /**
+     * Computes the transformation through {@link QuadTransform}, which skips the computation while
+     * the corners stay within the move threshold.
+     */
+    @Benchmark
+    public float[] cached(Counters counters) {
+        float[] corners = nextCorners();
+        QuadTransform transform = mTransforms[mCode];
+        if (transform.update(corners, 0, CONTENT_WIDTH, CONTENT_HEIGHT)) {
+            Homography.rectToQuad(CONTENT_WIDTH, CONTENT_HEIGHT, transform.getQuad(), mMatrixValues);
+            counters.transformComputations++;
+        }
+        counters.draws++;
+        return mMatrixValues;
+    }
+
+    private float[] nextCorners() {
+        mCode++;
+        if (mCode == codesCount) {
+            mCode = 0;
+            mFrame = (mFrame + 1) % FRAMES_COUNT;
+        }
+        return mFrames[mFrame][mCode];
+    }
+
+}
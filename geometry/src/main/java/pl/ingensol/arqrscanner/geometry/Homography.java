@@ -0,0 +1,82 @@
+package pl.ingensol.arqrscanner.geometry;
+
+/**
+ * Projective transformation of a rectangle onto a quadrilateral, equivalent to
+ * {@code android.graphics.Matrix#setPolyToPoly} with four points.
+ */
+public final class Homography {
+
+    public static final int VALUES_COUNT = 9;
+
+    private Homography() {
+    }
+
+    /**
+     * Computes the 3x3 matrix mapping the rectangle (0, 0, width, height) onto the quadrilateral,
+     * so that the rectangle corners, clockwise from the top left one, land on the consecutive
+     * quadrilateral points.  Values are stored row by row, in the order expected by
+     * {@code android.graphics.Matrix#setValues}.<p>
+     *
+     * Uses the closed-form square to quadrilateral mapping from Heckbert's "Fundamentals of
+     * Texture Mapping and Image Warping".
+     *
+     * @return false if the quadrilateral is degenerate and no transformation exists
+     */
+    public static boolean rectToQuad(float width, float height, float[] quad, float[] values) {
+        float x0 = quad[0], y0 = quad[1];
+        float x1 = quad[2], y1 = quad[3];
+        float x2 = quad[4], y2 = quad[5];
+        float x3 = quad[6], y3 = quad[7];
+
+        float dx3 = x0 - x1 + x2 - x3;
+        float dy3 = y0 - y1 + y2 - y3;
+
+        float a, b, d, e, g, h;
+        if (dx3 == 0 && dy3 == 0) {
+            // parallelogram - affine transformation is enough
+            a = x1 - x0;
+            b = x2 - x1;
+            d = y1 - y0;
+            e = y2 - y1;
+            g = 0;
+            h = 0;
+        } else {
+            float dx1 = x1 - x2;
+            float dx2 = x3 - x2;
+            float dy1 = y1 - y2;
+            float dy2 = y3 - y2;
+            float denominator = dx1 * dy2 - dx2 * dy1;
+            if (denominator == 0) {
+                return false;
+            }
+            g = (dx3 * dy2 - dx2 * dy3) / denominator;
+            h = (dx1 * dy3 - dx3 * dy1) / denominator;
+            a = x1 - x0 + g * x1;
+            b = x3 - x0 + h * x3;
+            d = y1 - y0 + g * y1;
+            e = y3 - y0 + h * y3;
+        }
+
+        // scale the rectangle down to the unit square first
+        values[0] = a / width;
+        values[1] = b / height;
+        values[2] = x0;
+        values[3] = d / width;
+        values[4] = e / height;
+        values[5] = y0;
+        values[6] = g / width;
+        values[7] = h / height;
+        values[8] = 1;
+        return true;
+    }
+
+    /**
+     * Maps a point with the matrix computed by {@link #rectToQuad} and stores it in {@code dst}.
+     */
+    public static void mapPoint(float[] values, float x, float y, float[] dst) {
+        float w = values[6] * x + values[7] * y + values[8];
+        dst[0] = (values[0] * x + values[1] * y + values[2]) / w;
+        dst[1] = (values[3] * x + values[4] * y + values[5]) / w;
+    }
+
+}
@@ -0,0 +1,130 @@
+package pl.ingensol.arqrscanner.geometry;
+
+/**
+ * Operations on quadrilaterals stored as flat arrays of four (x, y) points, as reported for
+ * barcode corners.  Methods do not allocate, so they are safe to call on every frame.
+ */
+public final class QuadGeometry {
+
+    public static final int POINTS_IN_RECT_COUNT = 4;
+    public static final int POINTS_IN_RECT_XY_COUNT = POINTS_IN_RECT_COUNT * 2;
+
+    private QuadGeometry() {
+    }
+
+    /**
+     * Stores the mean of the points in {@code center} as (x, y).
+     */
+    public static void findCenter(float[] points, float[] center) {
+        float xSum = 0;
+        float ySum = 0;
+        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
+            xSum += points[i * 2];
+            ySum += points[i * 2 + 1];
+        }
+        center[0] = xSum / POINTS_IN_RECT_COUNT;
+        center[1] = ySum / POINTS_IN_RECT_COUNT;
+    }
+
+    /**
+     * Rotates points around the center by the given device rotation and returns the index, in the
+     * flat array, of the point which is then closest to the origin, i.e. the top left one from
+     * the user's point of view.
+     *
+     * @param rotatedPoints scratch array for rotated points
+     */
+    public static int findTopLeftPointXyIndex(float[] points, float[] center, float rotationDegrees, float[] rotatedPoints) {
+        rotateAroundPoint(points, rotatedPoints, center, rotationDegrees);
+
+        float minXY = Float.MAX_VALUE;
+        int topLeftPoint = -1;
+        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
+            float x = rotatedPoints[i * 2];
+            float y = rotatedPoints[i * 2 + 1];
+            float pointXY = x * x + y * y;
+            if (pointXY < minXY) {
+                minXY = pointXY;
+                topLeftPoint = i;
+            }
+        }
+
+        return topLeftPoint * 2;
+    }
+
+    /**
+     * Copies points so that the point at {@code shift} index becomes the first one, keeping their
+     * cyclic order.
+     */
+    public static void copyShifted(float[] src, float[] dst, int shift) {
+        int pointsFromShiftToEnd = POINTS_IN_RECT_XY_COUNT - shift;
+        System.arraycopy(src, shift, dst, 0,                    pointsFromShiftToEnd);
+        System.arraycopy(src, 0,     dst, pointsFromShiftToEnd, shift);
+    }
+
+    /**
+     * Reorders corner points so that they start from the top left one.
+     *
+     * @param rotatedPoints scratch array for rotated points
+     */
+    public static void computeBarcodePoints(float[] src, float[] dst, float[] center, float rotationDegrees, float[] rotatedPoints) {
+        int topLeftPointXyIndex = findTopLeftPointXyIndex(src, center, rotationDegrees, rotatedPoints);
+        copyShifted(src, dst, topLeftPointXyIndex);
+    }
+
+    /**
+     * Scales points around the given point so that a content of the given size keeps its ratio,
+     * with its shorter side scaled by {@code scale}.
+     */
+    public static void scalePointsWithRespectToPointKeepingRatio(float[] src, float[] dst, float[] point, int width, int height, float scale) {
+        float scaleBase = Math.min(width, height);
+        float scaleX = width / scaleBase * scale;
+        float scaleY = height / scaleBase * scale;
+
+        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
+            dst[i * 2] = point[0] + (src[i * 2] - point[0]) * scaleX;
+            dst[i * 2 + 1] = point[1] + (src[i * 2 + 1] - point[1]) * scaleY;
+        }
+    }
+
+    /**
+     * Rotates points clockwise (in screen coordinates) around the given point.
+     */
+    public static void rotateAroundPoint(float[] src, float[] dst, float[] point, float degrees) {
+        double radians = Math.toRadians(degrees);
+        float cos = (float) Math.cos(radians);
+        float sin = (float) Math.sin(radians);
+        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
+            float x = src[i * 2] - point[0];
+            float y = src[i * 2 + 1] - point[1];
+            dst[i * 2] = point[0] + x * cos - y * sin;
+            dst[i * 2 + 1] = point[1] + x * sin + y * cos;
+        }
+    }
+
+    /**
+     * Computes area of the quadrilateral with the shoelace formula.
+     */
+    public static float computeArea(float[] points) {
+        float doubleArea = 0;
+        for (int i = 0; i < POINTS_IN_RECT_COUNT; i++) {
+            int next = (i + 1) % POINTS_IN_RECT_COUNT;
+            doubleArea += points[i * 2] * points[next * 2 + 1] - points[next * 2] * points[i * 2 + 1];
+        }
+        return Math.abs(doubleArea) / 2;
+    }
+
+    /**
+     * Stores bounds of the points as (left, top, right, bottom).
+     */
+    public static void computeBounds(float[] points, float[] bounds) {
+        bounds[0] = bounds[2] = points[0];
+        bounds[1] = bounds[3] = points[1];
+        for (int i = 1; i < POINTS_IN_RECT_COUNT; i++) {
+            bounds[0] = Math.min(bounds[0], points[i * 2]);
+            bounds[1] = Math.min(bounds[1], points[i * 2 + 1]);
+            bounds[2] = Math.max(bounds[2], points[i * 2]);
+            bounds[3] = Math.max(bounds[3], points[i * 2 + 1]);
+        }
+    }
+
+}
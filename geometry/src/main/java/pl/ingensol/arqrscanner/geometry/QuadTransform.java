@@ -0,0 +1,122 @@
+package pl.ingensol.arqrscanner.geometry;
+
+/**
+ * Computes, and caches between frames, the quadrilateral on which a content of a given size is
+ * presented over a barcode: corners reordered to start from the top left one as seen by the user
+ * and scaled around the barcode center keeping the content ratio.<p>
+ *
+ * The quadrilateral is recomputed only when the corners move or the device rotates by more than
+ * the configured thresholds, or the content size changes.  Not thread safe.
+ */
+public final class QuadTransform {
+
+    public static final float DEFAULT_MOVE_THRESHOLD_PX = 2f;
+    public static final float DEFAULT_ROTATION_THRESHOLD_DEGREES = 2f;
+
+    private final float mScale;
+    private float mMoveThresholdPx = DEFAULT_MOVE_THRESHOLD_PX;
+    private float mRotationThresholdDegrees = DEFAULT_ROTATION_THRESHOLD_DEGREES;
+
+    private final float[] mCenter = new float[2];
+    private final float[] mRotatedCornerPoints = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+    private final float[] mBarcodePoints = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+    private final float[] mQuad = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+    private float mQuadArea;
+
+    // state for which the quadrilateral was computed
+    private boolean mValid;
+    private final float[] mCornerPoints = new float[QuadGeometry.POINTS_IN_RECT_XY_COUNT];
+    private float mRotationDegrees;
+    private int mContentWidth;
+    private int mContentHeight;
+    private int mComputationsCount;
+
+    /**
+     * @param scale how many times the presented content is bigger than the barcode
+     */
+    public QuadTransform(float scale) {
+        mScale = scale;
+    }
+
+    /**
+     * Sets how far the barcode corners have to move, or the device has to rotate, before the
+     * quadrilateral is recomputed.  Zero thresholds recompute it whenever anything changes.
+     */
+    public void setThresholds(float moveThresholdPx, float rotationThresholdDegrees) {
+        mMoveThresholdPx = moveThresholdPx;
+        mRotationThresholdDegrees = rotationThresholdDegrees;
+        mValid = false;
+    }
+
+    /**
+     * Forgets the cached quadrilateral, so that the next {@link #update} recomputes it.
+     */
+    public void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * Updates the quadrilateral for barcode corners in view coordinates.
+     *
+     * @return true if the quadrilateral was recomputed
+     */
+    public boolean update(float[] cornerPoints, float rotationDegrees, int contentWidth, int contentHeight) {
+        if (mValid
+                && contentWidth == mContentWidth
+                && contentHeight == mContentHeight
+                && !isRotatedMoreThanThreshold(rotationDegrees)
+                && !isMovedMoreThanThreshold(cornerPoints)) {
+            return false;
+        }
+
+        QuadGeometry.findCenter(cornerPoints, mCenter);
+        QuadGeometry.computeBarcodePoints(cornerPoints, mBarcodePoints, mCenter, rotationDegrees, mRotatedCornerPoints);
+        QuadGeometry.scalePointsWithRespectToPointKeepingRatio(mBarcodePoints, mQuad, mCenter, contentWidth, contentHeight, mScale);
+        mQuadArea = QuadGeometry.computeArea(mQuad);
+
+        System.arraycopy(cornerPoints, 0, mCornerPoints, 0, QuadGeometry.POINTS_IN_RECT_XY_COUNT);
+        mRotationDegrees = rotationDegrees;
+        mContentWidth = contentWidth;
+        mContentHeight = contentHeight;
+        mValid = true;
+        mComputationsCount++;
+        return true;
+    }
+
+    /**
+     * Returns the quadrilateral points, starting from the top left one.  The array is owned by
+     * this object and changes on recomputation.
+     */
+    public float[] getQuad() {
+        return mQuad;
+    }
+
+    /**
+     * Returns area of the quadrilateral in pixels.
+     */
+    public float getQuadArea() {
+        return mQuadArea;
+    }
+
+    /**
+     * Returns how many times the quadrilateral was computed.
+     */
+    public int getComputationsCount() {
+        return mComputationsCount;
+    }
+
+    private boolean isMovedMoreThanThreshold(float[] cornerPoints) {
+        for (int i = 0; i < QuadGeometry.POINTS_IN_RECT_XY_COUNT; i++) {
+            if (Math.abs(cornerPoints[i] - mCornerPoints[i]) > mMoveThresholdPx) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRotatedMoreThanThreshold(float rotationDegrees) {
+        float difference = Math.abs(rotationDegrees - mRotationDegrees) % 360;
+        return Math.min(difference, 360 - difference) > mRotationThresholdDegrees;
+    }
+
+}